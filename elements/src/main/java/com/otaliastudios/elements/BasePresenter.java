@@ -2,7 +2,6 @@ package com.otaliastudios.elements;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.os.Handler;
 import android.support.annotation.CallSuper;
 import android.support.annotation.IntDef;
 import android.support.annotation.LayoutRes;
@@ -18,8 +17,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import bolts.Continuation;
-import bolts.Task;
 
 /**
  * A simple implementation of ElementPresenter that, along with {@link BaseSource}, supports
@@ -30,8 +27,9 @@ import bolts.Task;
  * Control with {@link #setPaginationMode(int)}, {@link #onInitializePaginationView(ElementPresenter.Holder)},
  * {@link #onBindPaginationView(Pager.Page, ElementPresenter.Holder, Element)}.
  * This class implements two different policies for pagination:
- * - {@link #PAGINATION_MODE_ONBIND}: when the view is bound, after a small delay,
- *   the adapter is asked for the next page. The view should be something like a ProgressBar.
+ * - {@link #PAGINATION_MODE_ONBIND}: when the view is bound, the adapter is asked for the next
+ *   page. The view should be something like a ProgressBar. The next page can also be loaded
+ *   earlier, see {@link ElementAdapter#setPrefetchDistance(int)}.
  * - {@link #PAGINATION_MODE_ONCLICK}: when the view is clicked, the adapter is asked for
  *   the next page. The view should be something like a Button.
  *
@@ -132,6 +130,20 @@ public abstract class BasePresenter extends ElementPresenter {
         return new ArrayList<>(Arrays.asList(0));
     }
 
+    // There is at most one placeholder per page, so there's no need to pool many.
+    @Override
+    protected int getMaxRecycledViews(int elementType) {
+        switch (elementType) {
+            case BaseSource.TYPE_EMPTY:
+            case BaseSource.TYPE_ERROR:
+            case BaseSource.TYPE_PAGINATION:
+            case BaseSource.TYPE_LOADING:
+                return 2;
+            default:
+                return super.getMaxRecycledViews(elementType);
+        }
+    }
+
     // Views
 
     @Override
@@ -186,24 +198,14 @@ public abstract class BasePresenter extends ElementPresenter {
     @CallSuper
     protected void onBindEmptyView(Pager.Page page, Holder holder) {
         if (clickListener != null) {
-            holder.getRoot().setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    clickListener.onEmptyClick();
-                }
-            });
+            holder.getRoot().setOnClickListener(holder.rootClickListener);
         }
     }
 
     @CallSuper
     protected void onBindErrorView(Pager.Page page, Holder holder) {
         if (clickListener != null) {
-            holder.getRoot().setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    clickListener.onErrorClick();
-                }
-            });
+            holder.getRoot().setOnClickListener(holder.rootClickListener);
         }
     }
 
@@ -212,33 +214,13 @@ public abstract class BasePresenter extends ElementPresenter {
 
     @CallSuper
     protected void onBindPaginationView(final Pager.Page page, Holder holder, final Element element) {
-        // Remove the element from this page as soon as next page is loaded.
-        final Continuation<Void, Void> then = new Continuation<Void, Void>() {
-            @Override
-            public Void then(Task<Void> task) throws Exception {
-                page.removeElement(element);
-                return null;
-            }
-        };
         // Act depending on pagination mode.
         if (getPaginationMode() == PAGINATION_MODE_ONBIND) {
-            try {
-                new Handler().postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        page.loadNextPage().onSuccess(then, Task.UI_THREAD_EXECUTOR);
-                    }
-                }, 500);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            // Posted by the adapter, that also removes the element. It might have been
+            // requested already, if prefetching.
+            page.loadNextPage(element);
         } else if (getPaginationMode() == PAGINATION_MODE_ONCLICK) {
-            holder.getRoot().setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    page.loadNextPage().onSuccess(then, Task.UI_THREAD_EXECUTOR);
-                }
-            });
+            holder.getRoot().setOnClickListener(holder.rootClickListener);
         }
     }
 
@@ -249,6 +231,16 @@ public abstract class BasePresenter extends ElementPresenter {
 
     // Clicks
 
+    @Override
+    /* package */ void onRootClick(Holder holder, Pager.Page page, Element element) {
+        switch (element.getElementType()) {
+            case BaseSource.TYPE_EMPTY: if (clickListener != null) clickListener.onEmptyClick(); break;
+            case BaseSource.TYPE_ERROR: if (clickListener != null) clickListener.onErrorClick(); break;
+            case BaseSource.TYPE_PAGINATION: page.loadNextPage(element); break;
+            default: super.onRootClick(holder, page, element); break;
+        }
+    }
+
     public interface PlaceholderClickListener {
         void onEmptyClick();
         void onErrorClick();
@@ -4,7 +4,6 @@ import android.os.Bundle;
 import android.support.annotation.CallSuper;
 import android.support.annotation.NonNull;
 import android.support.annotation.UiThread;
-import android.support.annotation.WorkerThread;
 
 import java.util.Arrays;
 import java.util.List;
@@ -76,12 +75,15 @@ public abstract class BaseSource extends ElementSource {
         // Insert loading placeholder if needed.
         boolean insert = loadingPlaceholderEnabled; // Check flag
         insert = insert && page.getPageNumber() == 0; // Only if first page
-        insert = insert && page.getElementsCount() <= 1; // "Empty" page
+        if (!insert) return;
+        // We are not in the UI thread: read from a consistent snapshot of the page.
+        Pager.Snapshot snapshot = page.getSnapshot();
+        insert = snapshot.getElementsCount() <= 1; // "Empty" page
         if (!insert) return;
         // We must check for the presence of other placeholders in the current page.
         // If the element is a placeholder, remove and insert the loading placeholder.
-        final int count = page.getElementsCount(); // Either 0 or 1
-        insert = count == 0 || page.getElement(0).getData() instanceof Placeholder;
+        final int count = snapshot.getElementsCount(); // Either 0 or 1
+        insert = count == 0 || snapshot.getElement(0).getData() instanceof Placeholder;
         if (insert) {
             // Insert from the UI thread.
             Task.call(new Callable<Void>() {
@@ -150,6 +152,7 @@ public abstract class BaseSource extends ElementSource {
     }
 
     public static void clearPlaceholders(ElementAdapter adapter) {
+        if (adapter.getFirstPageNumber() != 0) return; // Placeholders only go in page 0
         Pager.Page page = adapter.getPage(0);
         if (page.getElementsCount() == 1) {
             Element element = page.getElement(0);
@@ -24,6 +24,15 @@ public final class Element<T> {
         this.elementType = elementType;
     }
 
+    // Placeholder for positions whose data is not in memory.
+    /* package */ static Element<Object> unloaded(int sourceId) {
+        return new Element<>(sourceId, ElementAdapter.TYPE_UNLOADED, null);
+    }
+
+    /* package */ boolean isUnloaded() {
+        return elementType == ElementAdapter.TYPE_UNLOADED;
+    }
+
     /**
      * Returns model data linked to this Element.
      * @return model data.
@@ -1,6 +1,8 @@
 package com.otaliastudios.elements;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
@@ -8,19 +10,32 @@ import android.support.annotation.WorkerThread;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.LayoutInflater;
+import android.view.View;
 import android.view.ViewGroup;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
 
+import bolts.CancellationToken;
+import bolts.CancellationTokenSource;
 import bolts.Continuation;
 import bolts.Task;
+import bolts.TaskCompletionSource;
 
 
 /**
@@ -46,10 +61,10 @@ import bolts.Task;
  *   It will automatically ask registered sources for objects for the first page,
  *   or use restored elements from the state bundle.
  *
- * Operations for Sources are bundled in groups that are performed together.
- * A group is defined as a set of Sources that are not dependent on each other. Groups are
- * computed in such a way that if {@code source1.dependsOn(source2)}, find operations for
- * {@code source1} are called after find operations for {@code source2}.
+ * Operations for Sources are scheduled based on their dependencies. If
+ * {@code source1.dependsOn(source2)}, find operations for {@code source1} are called after
+ * the results of {@code source2} were laid out. Each source starts as soon as all of its own
+ * dependencies are done, so sources that do not depend on each other run concurrently.
  *
  * Any call to {@code notify*} methods will likely break the internal state of the adapter.
  * Insertions, removals and any other dataset alteration must be done either through one of the many
@@ -70,16 +85,32 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
 
     private final static String TAG = ElementAdapter.class.getSimpleName();
     private final static boolean DEBUG = false;
+    private final static long MAX_RETRY_DELAY = 30000;
+    // For CPU work only. Finds might block, so they run on Task.BACKGROUND_EXECUTOR.
+    private final static Executor DEFAULT_EXECUTOR = new PriorityExecutor(
+            Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)), 128);
+    // Pages farther than this from the bound page share the same priority.
+    private final static int MAX_PRIORITY = 8;
 
     private static void log(String what) {
         if (DEBUG) Log.e(TAG, what);
     }
 
+    /**
+     * Element type for positions whose data is not in memory, e.g. because the page was evicted.
+     * Presenters can claim this type to customize the placeholder view. If none does, a simple
+     * default view is used.
+     *
+     * @see #setPageEvictionWindow(int)
+     */
+    public final static int TYPE_UNLOADED = -7;
+
     private List<ElementSource> allSources;
     private List<ElementPresenter> presenters;
-    private List<Set<Integer>> groups;
+    private List<Integer> order; // Source ids, dependencies first.
 
     private SparseArray<ElementSource> sourceIdMap;
+    private Map<ElementSource, Integer> sourceIds; // Reverse of sourceIdMap
     private SparseArray<ElementPresenter> elementTypeMap;
     private SparseArray<Set<Integer>> dependencyMap;
     private SparseArray<Set<Integer>> reverseDependencyMap;
@@ -90,6 +121,33 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
     // Not null for just a brief time.
     private Bundle savedInstanceState;
 
+    private Handler handler;
+    private boolean diffEnabled;
+    private int evictionWindow = -1;
+    private int lastBoundPage = -1;
+    private Prefetcher prefetcher;
+    private HolderPrewarmer prewarmer;
+    private Executor findExecutor = Task.BACKGROUND_EXECUTOR;
+    private Executor orderExecutor = DEFAULT_EXECUTOR;
+    private Executor restoreExecutor = DEFAULT_EXECUTOR;
+    private FindCache findCache;
+    private PageStore pageStore;
+    private boolean pageStoreReadable = true; // Until pages are cleared on purpose
+    private StateFile stateFile;
+    private ElementViewPool viewPool;
+    private final SparseIntArray poolViewTypes = new SparseIntArray(); // Element type to pool view type.
+    private final SparseIntArray poolElementTypes = new SparseIntArray(); // Pool view type to element type.
+    private int maxPageLoads;
+    private int runningPageLoads;
+    private final SparseArray<Task<Void>> pageLoads = new SparseArray<>();
+    private final LinkedList<QueuedLoad> queuedPageLoads = new LinkedList<>();
+    private final Runnable evictionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateEvictedPages();
+        }
+    };
+
     /**
      * Create an ElementAdapter. By contract, {@link #setPresenter(ElementPresenter...)}
      * and {@link #setSource(ElementSource...)} must be called before attaching to a RecyclerView.
@@ -97,14 +155,63 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
     public ElementAdapter() {
         pager = new Pager(this);
         elementTypeMap = new SparseArray<>();
+        prefetcher = new Prefetcher(this, pager, getHandler());
+        prewarmer = new HolderPrewarmer(this);
     }
 
     /**
      * Register an indefinite number of presenters that will receive Elements to be laid out.
+     * Each element type is assigned here to the first presenter that claims it, through
+     * {@link ElementPresenter#getElementTypes()}. Types claimed by more than one presenter are
+     * logged as warnings, except for the placeholder types shared by {@link BasePresenter}s.
      * @param presenters one or more ElementPresenter.
      */
     public void setPresenter(ElementPresenter... presenters) {
         this.presenters = Arrays.asList(presenters);
+        elementTypeMap = new SparseArray<>();
+        clearPoolViewTypes();
+        for (ElementPresenter presenter : presenters) {
+            for (int elementType : presenter.getElementTypes()) {
+                ElementPresenter claimed = elementTypeMap.get(elementType);
+                if (claimed == null) {
+                    elementTypeMap.put(elementType, presenter);
+                } else if (claimed != presenter && !isSharedPlaceholder(claimed, presenter, elementType)) {
+                    Log.w(TAG, "setPresenter: type "+elementType+" is claimed by "+claimed+" and "+presenter+". Using the first.");
+                }
+            }
+        }
+        if (elementTypeMap.get(TYPE_UNLOADED) == null) {
+            elementTypeMap.put(TYPE_UNLOADED, new UnloadedPresenter());
+        }
+    }
+
+    // Every BasePresenter claims the placeholder types. That's expected, not a conflict.
+    private static boolean isSharedPlaceholder(ElementPresenter first, ElementPresenter second, int elementType) {
+        if (!(first instanceof BasePresenter) || !(second instanceof BasePresenter)) return false;
+        switch (elementType) {
+            case BaseSource.TYPE_PAGINATION:
+            case BaseSource.TYPE_EMPTY:
+            case BaseSource.TYPE_ERROR:
+            case BaseSource.TYPE_LOADING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the element types that presenters passed to {@link #setPresenter(ElementPresenter...)}
+     * are able to lay out, including {@link #TYPE_UNLOADED}.
+     *
+     * @return a new array of element types
+     */
+    @NonNull
+    public int[] getElementTypes() {
+        int[] types = new int[elementTypeMap.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = elementTypeMap.keyAt(i);
+        }
+        return types;
     }
 
     /**
@@ -116,30 +223,30 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
      */
     public void setSource(ElementSource... sources) {
         int count = sources.length;
-        allSources = Arrays.asList(sources);
         sourceIdMap = new SparseArray<>(count);
+        sourceIds = new IdentityHashMap<>(count);
         dependencyMap = new SparseArray<>(count);
         reverseDependencyMap = new SparseArray<>(count);
-        groups = new ArrayList<>(count);
         for (int i = 0; i < count; i++) {
             // Assign a unique id to each source, based on its position in the input array.
             sourceIdMap.put(i, sources[i]);
+            sourceIds.put(sources[i], i);
             // Allocate maps for dependencies.
             dependencyMap.put(i, new HashSet<Integer>());
             reverseDependencyMap.put(i, new HashSet<Integer>());
         }
 
         // Initialize ordered lists.
-        computeDependencies();
-        computeGroups();
+        computeDependencies(sources);
+        computeOrder();
     }
 
-    private void computeDependencies() {
-        int size = allSources.size();
+    private void computeDependencies(ElementSource[] sources) {
+        int size = sources.length;
         for (int i = 0; i < size - 1; i++) {
             for (int j = i + 1; j < size; j++) {
-                ElementSource o1 = allSources.get(i);
-                ElementSource o2 = allSources.get(j);
+                ElementSource o1 = sources[i];
+                ElementSource o2 = sources[j];
                 int id1 = getId(o1);
                 int id2 = getId(o2);
                 boolean dep1 = o1.dependsOn(o2);
@@ -162,21 +269,6 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
                 }
             }
         }
-
-        // We also want to sort the sources based on a similar comparator.
-        Collections.sort(allSources, new Comparator<ElementSource>() {
-            @Override
-            public int compare(ElementSource o1, ElementSource o2) {
-                int id1 = getId(o1);
-                int id2 = getId(o2);
-                if (dependencyMap.get(id1).contains(id2)) {
-                    return 1;
-                } else if (dependencyMap.get(id2).contains(id1)) {
-                    return -1;
-                }
-                return 0;
-            }
-        });
     }
 
     private void checkCircularDependencies(int source, int target) {
@@ -187,38 +279,313 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
         }
     }
 
-    private void computeGroups() {
-        // get groups of tasks that can be bundled.
-        Set<Integer> currentGroup = new HashSet<>();
-        for (ElementSource source : allSources) {
-            int id = getId(source);
-            // source must not be directly dependent of bundled sources.
-            boolean canBeGrouped = true;
-            for (int alreadyGrouped : currentGroup) {
-                canBeGrouped = canBeGrouped && !dependencyMap.get(id).contains(alreadyGrouped);
-            }
-            if (canBeGrouped) {
-                currentGroup.add(id);
-            } else {
-                // Close the bundle.
-                groups.add(currentGroup);
-                currentGroup = new HashSet<>();
-                currentGroup.add(id);
-            }
+    // Topological sort of sources (Kahn), so that each source comes after its dependencies.
+    // Ties are broken by id, that is, by registration order.
+    private void computeOrder() {
+        int count = sourceIdMap.size();
+        int[] pending = new int[count];
+        List<Integer> ready = new ArrayList<>();
+        for (int id = 0; id < count; id++) {
+            pending[id] = dependencyMap.get(id).size();
+            if (pending[id] == 0) ready.add(id);
         }
-        if (!currentGroup.isEmpty()) {
-            groups.add(currentGroup);
+        order = new ArrayList<>(count);
+        allSources = new ArrayList<>(count);
+        for (int i = 0; i < ready.size(); i++) {
+            int id = ready.get(i);
+            order.add(id);
+            allSources.add(getSource(id));
+            for (int dependent : reverseDependencyMap.get(id)) {
+                if (--pending[dependent] == 0) ready.add(dependent);
+            }
         }
+        if (order.size() != count) throw new IllegalArgumentException("Indirect circular dependency detected.");
     }
 
     /* package */ int getId(ElementSource source) {
-        return sourceIdMap.keyAt(sourceIdMap.indexOfValue(source));
+        return sourceIds.get(source);
     }
 
     /* package */ ElementSource getSource(int id) {
         return sourceIdMap.get(id);
     }
 
+    /**
+     * Enables diffing when a page is found again, e.g. after {@link #load()}.
+     * If enabled, the objects of sources that have no dependencies are compared, in a background
+     * thread, with the objects they replace, using {@link ElementSource#areItemsTheSame(Object, Object)}
+     * and {@link ElementSource#areContentsTheSame(Object, Object)}. Only the minimal set of
+     * insertions, removals, moves and changes is then notified, instead of removing and inserting
+     * everything again. Sources with dependencies are always ordered again.
+     *
+     * Defaults to false.
+     *
+     * @param enabled whether to diff reloads
+     */
+    public void setDiffEnabled(boolean enabled) {
+        this.diffEnabled = enabled;
+    }
+
+    /* package */ boolean isDiffEnabled() {
+        return diffEnabled;
+    }
+
+    /**
+     * Enables page eviction, so that memory stays bounded on endless lists.
+     * Pages that are farther than {@code window} pages from the last bound page drop their
+     * elements, but keep their counts: positions stay stable and are laid out as
+     * {@link #TYPE_UNLOADED} placeholders. When the user scrolls back within the window,
+     * evicted pages are found again through {@link ElementSource#find(Pager.Page)}.
+     *
+     * Sources should be able to find any page again, at any time, for this to work.
+     * Defaults to -1, which means that pages are never evicted.
+     *
+     * @param window number of pages to keep around the last bound page, or -1
+     */
+    @UiThread
+    public void setPageEvictionWindow(int window) {
+        this.evictionWindow = window;
+        if (window < 0) {
+            getHandler().removeCallbacks(evictionRunnable);
+            lastBoundPage = -1;
+        }
+    }
+
+    /**
+     * Sets the distance from the end of the list, in positions, at which the next page
+     * should be loaded. When a position this close to the end is bound, the pagination
+     * element of the last page, if any, is asked to load the next page, so that it is ready
+     * before the user gets there. Pagination elements in {@link BasePresenter#PAGINATION_MODE_ONCLICK}
+     * are left alone.
+     *
+     * Defaults to -1, which means that pages are only loaded when the pagination element
+     * is bound.
+     *
+     * @see BaseSource#appendPaginationPlaceholder(List)
+     * @see #setPrefetchAdaptive(boolean)
+     * @param distance distance from the end, or -1 to disable
+     */
+    @UiThread
+    public void setPrefetchDistance(int distance) {
+        prefetcher.setDistance(distance);
+    }
+
+    /**
+     * If true, the prefetch distance set with {@link #setPrefetchDistance(int)} is increased
+     * when scrolling fast, based on the scroll speed and on the average time it takes to load
+     * a page. Defaults to false.
+     *
+     * @param adaptive whether to adapt the prefetch distance to scroll speed
+     */
+    @UiThread
+    public void setPrefetchAdaptive(boolean adaptive) {
+        prefetcher.setAdaptive(adaptive);
+    }
+
+    /**
+     * Sets the executor for finding pages: calling {@link ElementSource#find(Pager.Page)},
+     * creating elements and diffing them. If it is a {@link PriorityExecutor}, pages close to
+     * the last bound page are run first. Pass null to go back to the default,
+     * {@link Task#BACKGROUND_EXECUTOR}: sources might block while finding, e.g. on network
+     * or disk, so a small pool would be starved.
+     *
+     * @param executor the executor, or null
+     */
+    public void setFindExecutor(@Nullable Executor executor) {
+        this.findExecutor = executor == null ? Task.BACKGROUND_EXECUTOR : executor;
+    }
+
+    /**
+     * Sets the executor for ordering elements of sources that have dependencies.
+     * If it is a {@link PriorityExecutor}, pages close to the last bound page are run first.
+     * Pass null to go back to the default, a {@link PriorityExecutor} shared by all adapters,
+     * that is meant for short, CPU bound work like this.
+     *
+     * @param executor the executor, or null
+     */
+    public void setOrderExecutor(@Nullable Executor executor) {
+        this.orderExecutor = executor == null ? DEFAULT_EXECUTOR : executor;
+    }
+
+    /**
+     * Sets the executor for restoring pages from a saved state, through
+     * {@link ElementSource#restorePageState(Pager.Page, Bundle)}.
+     * See {@link #setOrderExecutor(Executor)}.
+     *
+     * @param executor the executor, or null
+     */
+    public void setRestoreExecutor(@Nullable Executor executor) {
+        this.restoreExecutor = executor == null ? DEFAULT_EXECUTOR : executor;
+    }
+
+    /* package */ Executor getOrderExecutor(Pager.Page page) {
+        return prioritize(orderExecutor, page);
+    }
+
+    // Pages close to the bound page, that are likely visible, go first.
+    @UiThread
+    private Executor prioritize(Executor executor, Pager.Page page) {
+        if (!(executor instanceof PriorityExecutor)) return executor;
+        int priority = lastBoundPage < 0 ? PriorityExecutor.PRIORITY_DEFAULT
+                : Math.min(Math.abs(page.getPageNumber() - lastBoundPage), MAX_PRIORITY);
+        return ((PriorityExecutor) executor).withPriority(priority);
+    }
+
+    /**
+     * Sets a cache for the results of {@link ElementSource#find(Pager.Page)}. Sources are not
+     * asked for pages that they returned recently, and no changes are needed to them.
+     * The same cache can be shared by several adapters. Pass null to disable caching,
+     * which is the default.
+     *
+     * @see FindCache
+     * @param cache the cache, or null
+     */
+    public void setFindCache(@Nullable FindCache cache) {
+        this.findCache = cache;
+    }
+
+    /**
+     * Sets a store for the first pages, so that they are displayed immediately when the list
+     * is created again, for example on a cold start, while sources find them again.
+     * Pages are written to the store each time they are loaded, through the source serializers.
+     * Sources whose serializer only keeps data in memory, like {@link StaticSerializer}, or
+     * that have no serializer, are not stored.
+     * The store is not read anymore once pages are cleared, e.g. by {@link #load(boolean)} or
+     * {@link #clear()}, so that old content does not come back.
+     * Pass null to disable, which is the default.
+     *
+     * @see PageStore
+     * @param store the store, or null
+     */
+    public void setPageStore(@Nullable PageStore store) {
+        this.pageStore = store;
+    }
+
+    /**
+     * Sets a file where page data is saved by {@link #saveState(Bundle)}, when it is too big
+     * to be saved in the state itself. Pass null to disable, which is the default.
+     *
+     * @see StateFile
+     * @param file the state file, or null
+     */
+    public void setStateFile(@Nullable StateFile file) {
+        this.stateFile = file;
+    }
+
+    /**
+     * Sets a pool of recycled views that can be shared with other adapters, for example
+     * {@link ElementViewPool#getShared()}. This must be called before attaching to a RecyclerView.
+     * Pass null to use the RecyclerView own pool, which is the default.
+     *
+     * @see ElementViewPool
+     * @param pool the pool, or null
+     */
+    public void setViewPool(@Nullable ElementViewPool pool) {
+        this.viewPool = pool;
+        clearPoolViewTypes();
+    }
+
+    private void clearPoolViewTypes() {
+        poolViewTypes.clear();
+        poolElementTypes.clear();
+    }
+
+    /**
+     * Sets the maximum number of page loads that can run at the same time, as started by
+     * {@link #loadSinglePage(int)}, {@link Pager.Page#loadNextPage()} or
+     * {@link Pager.Page#loadPreviousPage()}, or by other load methods when they clear nothing.
+     * Further loads wait in a queue, in order, until a running load completes.
+     * Loads that clear pages are never queued.
+     *
+     * Regardless of this, asking again for a page that is already loading, or waiting to load,
+     * does not start another load, but returns the same task.
+     *
+     * Defaults to 0, which means no limit.
+     *
+     * @param max the maximum number of running loads, or 0
+     */
+    @UiThread
+    public void setMaxPageLoads(int max) {
+        this.maxPageLoads = max;
+        runQueuedPageLoads();
+    }
+
+    /**
+     * Loads the page after the given one, on behalf of its pagination element,
+     * which is removed once done. Requests for the same page are coalesced.
+     *
+     * @param page the page
+     * @param element its pagination element
+     */
+    @UiThread
+    /* package */ void loadNextPage(Pager.Page page, Element element) {
+        prefetcher.post(page, element);
+    }
+
+    // Pagination element of the given page, if it can load the next page without user input.
+    // Slots are unloaded elements, so pages that still have them are not filled.
+    @Nullable
+    /* package */ Element findPaginationElement(Pager.Page page) {
+        if (page.isEvicted() || page.hasSlots()) return null;
+        ElementPresenter presenter = elementTypeMap.get(BaseSource.TYPE_PAGINATION);
+        if (presenter == null) return null;
+        if (presenter instanceof BasePresenter
+                && ((BasePresenter) presenter).getPaginationMode() != BasePresenter.PAGINATION_MODE_ONBIND) {
+            return null;
+        }
+        // This is typically the last element.
+        List<Element> elements = page.getElements();
+        for (int i = elements.size() - 1; i >= 0; i--) {
+            Element element = elements.get(i);
+            if (element.getElementType() == BaseSource.TYPE_PAGINATION) return element;
+        }
+        return null;
+    }
+
+    @UiThread
+    private void updateEvictedPages() {
+        if (lastBoundPage < 0) return;
+        if (evictionWindow < 0) {
+            // No window, but the bound page might have known size slots. Find it.
+            if (lastBoundPage < pager.getFirstPageNumber() || lastBoundPage > pager.getLastPageNumber()) return;
+            Pager.Page page = pager.getPage(lastBoundPage);
+            if (page.isEvicted() && !page.isLoading()) {
+                log("updateEvictedPages: restoring page "+lastBoundPage);
+                restoreEvictedPage(page);
+            }
+            return;
+        }
+        for (Pager.Page page : pager.getPages()) {
+            // Merged pages could not be found again.
+            if (page.isLoading() || page.isMerged()) continue;
+            int i = page.getPageNumber();
+            boolean inWindow = Math.abs(i - lastBoundPage) <= evictionWindow;
+            if (!inWindow && !page.isEvicted() && page.getElementsCount() > 0) {
+                log("updateEvictedPages: evicting page "+i);
+                page.evict();
+            } else if (inWindow && page.isEvicted()) {
+                log("updateEvictedPages: restoring page "+i);
+                restoreEvictedPage(page);
+            }
+        }
+    }
+
+    @UiThread
+    private Task<Void> restoreEvictedPage(final Pager.Page page) {
+        return findPage(page, true).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                dispatchPageLoaded(page);
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    private Handler getHandler() {
+        if (handler == null) handler = new Handler(Looper.getMainLooper());
+        return handler;
+    }
+
     /**
      * Returns a {@link Pager.Page} for the desired number.
      * Throws if the page has not been opened yet.
@@ -240,6 +607,25 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
         return pager.getCurrentPage();
     }
 
+    /**
+     * Returns the number of the first page that was opened. This is 0 unless loading
+     * started from another page, see {@link #loadSinglePage(int)}.
+     *
+     * @return the first page number
+     */
+    public int getFirstPageNumber() {
+        return pager.getFirstPageNumber();
+    }
+
+    /**
+     * Returns the number of the last page that was opened.
+     *
+     * @return the last page number
+     */
+    public int getLastPageNumber() {
+        return pager.getLastPageNumber();
+    }
+
     /**
      * Creates a new element with desired data, assuming it was created by the provided {@code source}.
      * The source will be asked for the element type using {@link ElementSource#getElementType(Object)}.
@@ -254,12 +640,77 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
         return new Element<>(getId(source), source.getElementType(data), data);
     }
 
+    // Creates elements for objects, starting at the given index, as createElement() would.
+    // The source id is resolved once for all of them.
+    /* package */ List<Element> createElements(ElementSource source, List<?> objects, int start) {
+        int sourceId = getId(source);
+        int count = objects.size();
+        List<Element> elements = new ArrayList<>(Math.max(count - start, 0));
+        if (objects instanceof RandomAccess) {
+            for (int i = start; i < count; i++) {
+                Object data = objects.get(i);
+                elements.add(new Element<>(sourceId, source.getElementType(data), data));
+            }
+        } else if (start < count) {
+            for (Iterator<?> iterator = objects.listIterator(start); iterator.hasNext();) {
+                Object data = iterator.next();
+                elements.add(new Element<>(sourceId, source.getElementType(data), data));
+            }
+        }
+        return elements;
+    }
+
     /**
      * Clear the whole adapter and leave it blank.
      */
     @UiThread
     public void clear() {
-        pager.clearPages(0, pager.getNumberOfPages());
+        pageStoreReadable = false;
+        pager.clearPages(pager.getFirstPageNumber(), pager.getLastPageNumber() + 1);
+    }
+
+    /**
+     * Removes the given page and its elements. Other pages keep their numbers, so sources
+     * do not need to care: if this page was in the middle, its number is taken over by the
+     * previous page and won't be loaded again. Sources are notified through
+     * {@link ElementSource#onPageRemoved(Pager.Page)}.
+     *
+     * Throws if the page is still loading, or if it is the only page.
+     *
+     * @param pageNumber page to be removed
+     */
+    @UiThread
+    public void removePage(int pageNumber) {
+        Pager.Page page = pager.removePage(pageNumber);
+        dispatchPagesRemoved(Collections.singletonList(page));
+    }
+
+    /**
+     * Merges small adjacent pages into one, as long as the merged page has no more than
+     * {@code maxElements} elements. This keeps the number of pages low during long sessions,
+     * and does not touch elements. Pages that are loading or evicted are not merged.
+     *
+     * Page numbers do not change. Merged pages hold elements that were found for different page
+     * numbers, so they are never evicted, nor found again unless a load clears them: see
+     * {@link Pager.Page#isMerged()} and {@link #loadSinglePage(int, boolean, boolean)}.
+     * Sources are notified through {@link ElementSource#onPageRemoved(Pager.Page)} for each
+     * page that was merged into the previous one.
+     *
+     * @param maxElements max number of elements for a compacted page
+     */
+    @UiThread
+    public void compactPages(int maxElements) {
+        List<Pager.Page> removed = pager.compactPages(maxElements);
+        if (!removed.isEmpty()) dispatchPagesRemoved(removed);
+    }
+
+    @UiThread
+    private void dispatchPagesRemoved(List<Pager.Page> removed) {
+        for (ElementSource source : allSources) {
+            for (Pager.Page page : removed) {
+                source.onPageRemoved(page);
+            }
+        }
     }
 
     /**
@@ -268,8 +719,8 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
      */
     @UiThread
     public void rebind() {
-        for (int i = 0; i < pager.getNumberOfPages(); i++) {
-            rebindPage(i);
+        for (Pager.Page page : pager.getPages()) {
+            rebindPage(page.getPageNumber());
         }
     }
 
@@ -284,9 +735,11 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
     @UiThread
     public void rebindPage(int pageNumber) {
         Pager.Page page = pager.getPage(pageNumber);
+        if (page.isEvicted()) return; // Nothing to rebind.
         for (ElementSource source : allSources) {
             List<Element> elements = page.getElementsBySource(getId(source));
             for (Element element : elements) {
+                if (element.isUnloaded()) continue;
                 element.elementType = source.getElementType(element.getData());
             }
         }
@@ -312,6 +765,8 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
     /**
      * Loads page 0. This means, among other things, opening the page if needed and asking sources
      * for objects through {@link ElementSource#find(Pager.Page)}.
+     * If a source declares its total size through {@link ElementSource#getKnownSize()}, the
+     * following pages are laid out as placeholders and found when bound.
      * If {@code clearImmediately} is true, the page is cleared before asking for new objects.
      * If not, and the page already has some objects for a certain source, they will be removed
      * once new objects from that source come.
@@ -321,22 +776,90 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
      */
     @UiThread
     public Task<Void> load(boolean clearImmediately) {
-        return loadSinglePage(0, true, clearImmediately);
+        return loadSinglePage(0, true, clearImmediately).onSuccessTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                return openKnownSizePages();
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    // Declared by a source through getKnownSize().
+    private static class KnownSize {
+        private int sourceId;
+        private int size;
+        private int pageSize;
+    }
+
+    /**
+     * If a source declares its total size, lays out the remaining pages with unloaded slots,
+     * so that the whole list can be scrolled. They are found once bound.
+     */
+    @UiThread
+    private Task<Void> openKnownSizePages() {
+        return Task.call(new Callable<KnownSize>() {
+            @Override
+            public KnownSize call() throws Exception {
+                for (ElementSource source : allSources) {
+                    int size = source.getKnownSize();
+                    int pageSize = source.getKnownPageSize();
+                    if (size >= 0 && pageSize > 0) {
+                        KnownSize known = new KnownSize();
+                        known.sourceId = getId(source);
+                        known.size = size;
+                        known.pageSize = pageSize;
+                        return known;
+                    }
+                }
+                return null;
+            }
+        }, findExecutor).onSuccess(new Continuation<KnownSize, Void>() {
+            @Override
+            public Void then(Task<KnownSize> task) throws Exception {
+                KnownSize known = task.getResult();
+                // Only if the list is still starting at 0, as we just loaded it.
+                if (known != null && pager.getFirstPageNumber() == 0) {
+                    pager.openSlotPages(known.sourceId, known.size, known.pageSize);
+                }
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
     }
 
     /**
      * Loads desired page. This means, among other things, opening the page if needed and asking
      * sources for objects through {@link ElementSource#find(Pager.Page)}.
      *
+     * Pages need not start from 0: the first page can be any, e.g. for deep links, and then
+     * pages before and after it can be loaded with {@link Pager.Page#loadPreviousPage()} and
+     * {@link Pager.Page#loadNextPage()}. Loading a page that is not next to the opened ones
+     * removes all pages and starts over from the desired one.
+     *
      * Objects belonging to other pages stay untouched.
      * Objects belonging to page {@code pageNumber}, if present, will be cleared as soon as new
      * objects arrive.
      *
+     * If the page is already loading, no other load is started and the same task is returned.
+     * See {@link #setMaxPageLoads(int)} to limit the number of loads that run at the same time.
+     *
      * @param pageNumber desired page.
      * @return a Task that is completed once the page is loaded.
      */
     @UiThread
     public Task<Void> loadSinglePage(int pageNumber) {
+        // Coalesce with a load of the same page.
+        Task<Void> pending = pageLoads.get(pageNumber);
+        if (pending != null) {
+            log("loadSinglePage: page "+pageNumber+" is already loading.");
+            return pending;
+        }
+        if (maxPageLoads > 0 && runningPageLoads >= maxPageLoads) {
+            log("loadSinglePage: queueing page "+pageNumber+", running="+runningPageLoads);
+            QueuedLoad load = new QueuedLoad(pageNumber);
+            queuedPageLoads.add(load);
+            pageLoads.put(pageNumber, load.source.getTask());
+            return load.source.getTask();
+        }
         return performFind(pageNumber, false, false);
     }
 
@@ -356,7 +879,7 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
      */
     @UiThread
     public Task<Void> loadSinglePage(int pageNumber, boolean clearSubsequentPages) {
-        return performFind(pageNumber, clearSubsequentPages, false);
+        return loadSinglePage(pageNumber, clearSubsequentPages, false);
     }
 
     /**
@@ -369,6 +892,8 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
      * the requested page is loaded.
      * Objects belonging to page {@code pageNumber}, if present, will be cleared as soon as new
      * objects arrive or immediately, depending on {@code immediately}.
+     * If other pages were merged with this one through {@link #compactPages(int)}, they are
+     * opened again, empty, before the load. Loads that clear nothing fail for merged pages.
      *
      * @param pageNumber desired page.
      * @param clearSubsequentPages whether to clear next pages content
@@ -377,105 +902,487 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
      */
     @UiThread
     public Task<Void> loadSinglePage(int pageNumber, boolean clearSubsequentPages, boolean immediately) {
+        // Loads that clear nothing are coalesced and queued like the others.
+        if (!clearSubsequentPages && !immediately) return loadSinglePage(pageNumber);
         return performFind(pageNumber, clearSubsequentPages, immediately);
     }
 
+    // A page load waiting for others to complete.
+    private static class QueuedLoad {
+        private final int pageNumber;
+        private final TaskCompletionSource<Void> source = new TaskCompletionSource<>();
+
+        private QueuedLoad(int pageNumber) {
+            this.pageNumber = pageNumber;
+        }
+    }
+
+    @UiThread
+    private void runQueuedPageLoads() {
+        while (!queuedPageLoads.isEmpty() && (maxPageLoads <= 0 || runningPageLoads < maxPageLoads)) {
+            final QueuedLoad load = queuedPageLoads.removeFirst();
+            int first = pager.getFirstPageNumber();
+            int last = pager.getLastPageNumber();
+            if (pager.getNumberOfPages() > 0 && (load.pageNumber < first - 1 || load.pageNumber > last + 1)) {
+                // Pages were cleared or removed meanwhile. Don't start over from here.
+                log("runQueuedPageLoads: page "+load.pageNumber+" is not next to opened pages anymore.");
+                if (pageLoads.get(load.pageNumber) == load.source.getTask()) pageLoads.remove(load.pageNumber);
+                load.source.setCancelled();
+                continue;
+            }
+            performFind(load.pageNumber, false, false).continueWith(new Continuation<Void, Void>() {
+                @Override
+                public Void then(Task<Void> task) throws Exception {
+                    if (task.isCancelled()) {
+                        load.source.setCancelled();
+                    } else if (task.isFaulted()) {
+                        load.source.setError(task.getError());
+                    } else {
+                        load.source.setResult(null);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    // Loads that clear subsequent pages make queued loads for those pages stale.
+    @UiThread
+    private void cancelQueuedPageLoads(int afterPageNumber) {
+        Iterator<QueuedLoad> iterator = queuedPageLoads.iterator();
+        while (iterator.hasNext()) {
+            QueuedLoad load = iterator.next();
+            if (load.pageNumber > afterPageNumber) {
+                iterator.remove();
+                if (pageLoads.get(load.pageNumber) == load.source.getTask()) pageLoads.remove(load.pageNumber);
+                load.source.setCancelled();
+            }
+        }
+    }
+
     @UiThread
     private Task<Void> performFind(final int pageNumber, final boolean clearPagesAfter, final boolean immediately) {
+        if (pageNumber >= pager.getFirstPageNumber() && pageNumber <= pager.getLastPageNumber()) {
+            Pager.Page page = pager.getPage(pageNumber);
+            boolean covered = page.getPageNumber() != pageNumber;
+            if (page.isMerged() || covered) {
+                if (!clearPagesAfter && !immediately) {
+                    // Sources would only find part of the elements, or a page that was removed.
+                    return Task.forError(new IllegalStateException("Page "+pageNumber+" was merged or removed."));
+                }
+                if (page.isMerged() && covered) {
+                    // Elements of this number can't be told apart from the others.
+                    // Clear the whole range and find the previous numbers again.
+                    log("performFind: page "+pageNumber+" was merged into "+page.getPageNumber()+", clearing.");
+                    page.clear();
+                    for (int number = page.getPageNumber(); number < pageNumber; number++) {
+                        loadSinglePage(number);
+                    }
+                } else {
+                    // Elements of this page are replaced by the find, or cleared right away.
+                    // Other numbers go back to empty pages.
+                    log("performFind: page "+pageNumber+" covers other pages, splitting.");
+                    page.split();
+                }
+            }
+        }
+        if (clearPagesAfter) cancelQueuedPageLoads(pageNumber);
+        // Stored pages are only shown on a cold start. Once something is cleared, e.g.
+        // for a refresh or a query change, old content must not come back.
+        if ((clearPagesAfter || immediately) && pager.getNumberOfPages() > 0) pageStoreReadable = false;
+        runningPageLoads++;
+        final Task<Void> task = performPageFind(pageNumber, clearPagesAfter, immediately);
+        pageLoads.put(pageNumber, task);
+        task.continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> ignored) throws Exception {
+                runningPageLoads--;
+                if (pageLoads.get(pageNumber) == task) pageLoads.remove(pageNumber);
+                runQueuedPageLoads();
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+        return task;
+    }
+
+    @UiThread
+    private Task<Void> performPageFind(final int pageNumber, final boolean clearPagesAfter, final boolean immediately) {
         // Open page and clear if needed.
         final Pager.Page currentPage = pager.openPage(pageNumber, immediately);
         if (clearPagesAfter && immediately) {
-            pager.clearPages(pageNumber, pager.getNumberOfPages());
+            pager.clearPages(pageNumber, pager.getLastPageNumber() + 1);
         }
 
-        // Call performGroupFind in sequence, for all groups of Sources.
-        Task<Void> taskChain = Task.forResult(null);
-        for (Set<Integer> group : groups) {
-            final Set<Integer> finalGroup = group;
-            taskChain = taskChain.onSuccessTask(new Continuation<Void, Task<Void>>() {
+        // Find, then dispatch onPageLoaded to sources.
+        // If this load was superseded by a newer one, that one will take care of it.
+        return findPage(currentPage, false).continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                if (task.isCancelled()) return task;
+                boolean stillHere = currentPage.isCurrentPage();
+                if (clearPagesAfter && !immediately && stillHere) {
+                    pager.clearPages(pageNumber+1, pager.getLastPageNumber() + 1);
+                }
+                dispatchPageLoaded(currentPage);
+                if (!task.isFaulted()) writeStoredPage(currentPage);
+                return Task.forResult(null);
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    // Lays out the stored elements of this page, if any, one source at a time like when restoring.
+    // Finds run meanwhile: each source gets a token in storedTokens, that is cancelled when its
+    // live elements land, so that stored elements never replace them. This never fails.
+    @UiThread
+    private void readStoredPage(final Pager.Page page, final CancellationToken token,
+                                final SparseArray<CancellationTokenSource> storedTokens) {
+        final PageStore store = pageStore;
+        if (store == null || !store.isStored(page.getPageNumber())) return;
+        final int pageNumber = page.getPageNumber();
+        for (ElementSource source : allSources) {
+            if (source.isPersistable()) storedTokens.put(getId(source), new CancellationTokenSource());
+        }
+        if (storedTokens.size() == 0) return;
+        token.register(new Runnable() {
+            @Override
+            public void run() {
+                cancelStoredTokens(storedTokens);
+            }
+        });
+        final Task<Map<String, byte[]>> read = Task.call(new Callable<Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> call() throws Exception {
+                return store.read(pageNumber);
+            }
+        }, store.getExecutor(), token);
+        Task<Void> chain = read.makeVoid();
+        for (final ElementSource source : allSources) {
+            final int sourceId = getId(source);
+            final CancellationTokenSource storedToken = storedTokens.get(sourceId);
+            if (storedToken == null) continue;
+            // Each source goes on even if the previous one was dropped.
+            chain = chain.continueWithTask(new Continuation<Void, Task<Void>>() {
                 @Override
                 public Task<Void> then(Task<Void> task) throws Exception {
-                    return performGroupFind(finalGroup, currentPage);
+                    if (read.isFaulted() || read.isCancelled()) return task;
+                    if (storedToken.isCancellationRequested()) return Task.forResult(null);
+                    byte[] bytes = read.getResult().get(getStateKey(source));
+                    if (bytes == null) return Task.forResult(null);
+                    Bundle state = PageStore.unmarshall(bytes, source.getClass().getClassLoader());
+                    List<Object> objects = source.restorePageState(page, state).getResult();
+                    log("readStoredPage: found "+objects.size()+" stored elements for source #"+sourceId);
+                    return page.setElementsForSource(sourceId, createElements(source, objects, 0), storedToken.getToken());
                 }
-            });
+            }, restoreExecutor);
         }
-
-        // Then dispatch onPageLoaded to sources.
-        return taskChain.continueWith(new Continuation<Void, Void>() {
+        chain.continueWith(new Continuation<Void, Void>() {
             @Override
             public Void then(Task<Void> task) throws Exception {
-                boolean stillHere = currentPage.isCurrentPage();
-                if (clearPagesAfter && !immediately && stillHere) {
-                    pager.clearPages(pageNumber+1, pager.getNumberOfPages());
-                }
-                for (ElementSource source : allSources) {
-                    source.onPageLoaded(currentPage, currentPage.getElements());
+                if (task.isFaulted()) log("readStoredPage: failed: "+task.getError());
+                return null;
+            }
+        });
+    }
+
+    private static void cancelStoredTokens(SparseArray<CancellationTokenSource> storedTokens) {
+        for (int i = 0; i < storedTokens.size(); i++) {
+            storedTokens.valueAt(i).cancel();
+        }
+    }
+
+    // Writes the elements of this page to the page store, if any.
+    // Serializers run here, in the UI thread, like in saveState(). Sources whose serializer
+    // can't persist data, e.g. StaticSerializer, are not stored.
+    @UiThread
+    private void writeStoredPage(final Pager.Page page) {
+        final PageStore store = pageStore;
+        if (store == null || !store.isStored(page.getPageNumber())) return;
+        final int pageNumber = page.getPageNumber();
+        final Map<String, Bundle> states = new HashMap<>();
+        for (ElementSource source : allSources) {
+            if (!source.isPersistable()) continue;
+            Bundle state = new Bundle();
+            source.savePageState(page, page.getDataBySource(getId(source)), state);
+            states.put(getStateKey(source), state);
+        }
+        if (states.isEmpty()) return;
+        Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Map<String, byte[]> records = new HashMap<>();
+                for (Map.Entry<String, Bundle> entry : states.entrySet()) {
+                    records.put(entry.getKey(), PageStore.marshall(entry.getValue()));
                 }
+                store.write(pageNumber, records);
+                return null;
+            }
+        }, store.getExecutor()).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (task.isFaulted()) log("writeStoredPage: failed: "+task.getError());
                 return null;
             }
+        });
+    }
+
+    // The key of a source, in saved states and page stores.
+    // This assumes that allSources will have the same order later.
+    private String getStateKey(ElementSource source) {
+        return "source:"+source.getClass().getSimpleName()+":"+getId(source);
+    }
+
+    @UiThread
+    private Task<Void> findPage(final Pager.Page page, boolean restoring) {
+        // Any previous load for this page is cancelled and won't touch it anymore.
+        final CancellationToken token = page.onLoadStarted(restoring);
+        final Executor executor = prioritize(findExecutor, page);
+        page.fillSlots();
+        // If the page is empty on a cold start, show what was stored last time,
+        // while finding it again.
+        boolean empty = !restoring && page.getElementsCount() == 0;
+        final SparseArray<CancellationTokenSource> storedTokens = new SparseArray<>();
+        if (empty && pageStoreReadable) readStoredPage(page, token, storedTokens);
+
+        // Start each source as soon as its own dependencies have laid out their elements.
+        // If a dependency fails, so does the source.
+        SparseArray<Task<Void>> tasks = new SparseArray<>(order.size());
+        List<Task<Void>> allTasks = new ArrayList<>(order.size());
+        for (final int sourceId : order) {
+            Set<Integer> dependencies = getDependencies(sourceId);
+            List<Task<Void>> dependencyTasks = new ArrayList<>(dependencies.size());
+            for (int dependency : dependencies) {
+                dependencyTasks.add(tasks.get(dependency));
+            }
+            Task<Void> task = Task.whenAll(dependencyTasks).onSuccessTask(new Continuation<Void, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<Void> task) throws Exception {
+                    return performSourceFind(sourceId, page, token, storedTokens.get(sourceId), executor);
+                }
+            }, executor, token);
+            tasks.put(sourceId, task);
+            allTasks.add(task);
+        }
+        return Task.whenAll(allTasks).continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                // Stored elements that did not land yet would be older than what we found.
+                cancelStoredTokens(storedTokens);
+                page.onLoadEnded(token);
+                if (page.isEvicted() && !page.isLoading()) page.onEvictionRestored();
+                return task;
+            }
         }, Task.UI_THREAD_EXECUTOR);
     }
 
+    @UiThread
+    private void dispatchPageLoaded(Pager.Page page) {
+        for (ElementSource source : allSources) {
+            source.onPageLoaded(page, page.getElements());
+        }
+        prewarmer.onPageLoaded(page);
+    }
+
 
     @WorkerThread
-    private Task<Void> performGroupFind(Set<Integer> group, final Pager.Page page) {
-        // Perform find operations concurrently on each Source in this group.
-        List<Task<Void>> groupTasks = new ArrayList<>();
-        for (final Integer sourceId : group) {
-            // Get previous results.
-            final ElementSource source = getSource(sourceId);
-            // Call onPrepareFind with elements from this source dependencies Elements that, by
-            // design, are already loaded.
-            source.onPrepareFind(page, page.getElementsBySource(getDependencies(sourceId)));
-            // Call find.
-            Task<Void> task = source.find(page).continueWith(new Continuation<List<Object>, List<Object>>() {
-                @Override
-                public List<Object> then(Task<List<Object>> task) throws Exception {
-                    // Let everyone redefine the result with onDependencyAfterFind.
-                    task = source.onAfterFind(page, task);
-                    Set<Integer> reverseDependencies = getReverseDependencies(sourceId);
-                    for (int dependency : reverseDependencies) {
-                        task = getSource(dependency).onDependencyAfterFind(page, source, task);
+    private Task<Void> performSourceFind(final int sourceId, final Pager.Page page, final CancellationToken token,
+                                         @Nullable final CancellationTokenSource storedToken, Executor executor) {
+        if (token.isCancellationRequested()) return Task.cancelled();
+        final ElementSource source = getSource(sourceId);
+        // Call onPrepareFind with elements from this source dependencies Elements that, by
+        // design, are already loaded.
+        source.onPrepareFind(page, page.getElementsBySource(getDependencies(sourceId)));
+        // Call find, with the source timeout and retries.
+        // Chunks can be laid out right away, unless they need ordering or diffing.
+        boolean direct = getDependencies(sourceId).isEmpty()
+                && !(isDiffEnabled() && !page.getElementsBySource(sourceId).isEmpty());
+        final ElementSource.Emitter emitter = new ElementSource.Emitter(this, source, page, token, direct);
+        emitter.setStoredToken(storedToken);
+        return findWithTimeout(source, page, emitter, executor).continueWith(new Continuation<List<Object>, List<Object>>() {
+            @Override
+            public List<Object> then(Task<List<Object>> task) throws Exception {
+                // Live results are here. Stored ones, if still on their way, are dropped.
+                if (storedToken != null) storedToken.cancel();
+                // Let everyone redefine the result with onDependencyAfterFind.
+                task = source.onAfterFind(page, task);
+                Set<Integer> reverseDependencies = getReverseDependencies(sourceId);
+                for (int dependency : reverseDependencies) {
+                    task = getSource(dependency).onDependencyAfterFind(page, source, task);
+                }
+                // If task is faulted, let source provide alternative objects.
+                if (task.isFaulted() || task.isCancelled()) {
+                    List<Object> errorObjects = source.onFindError(page, task.getError());
+                    if (errorObjects != null) {
+                        return errorObjects;
                     }
-                    // If task is faulted, let source provide alternative objects.
-                    if (task.isFaulted() || task.isCancelled()) {
-                        List<Object> errorObjects = source.onFindError(page, task.getError());
-                        if (errorObjects != null) {
-                            return errorObjects;
-                        }
-                        throw new RuntimeException(task.getError());
+                    throw new RuntimeException(task.getError());
+                }
+                return task.getResult();
+
+            }
+        }, Task.UI_THREAD_EXECUTOR, token).continueWithTask(new Continuation<List<Object>, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<List<Object>> task) throws Exception {
+                if (!task.isFaulted() && !task.isCancelled()) {
+                    List<Object> list = task.getResult();
+                    List<Element> streamed = emitter.getElements();
+                    if (!streamed.isEmpty() && isStreamed(list, streamed)) {
+                        // Chunks are already there. Just add the rest.
+                        List<Element> tail = createElements(source, list, streamed.size());
+                        return page.appendElementsForSource(sourceId, streamed, tail, token);
                     }
-                    return task.getResult();
+                    // Create Elements out of objects.
+                    // This sucks a little bit, but to now it is better than add typing
+                    // to sources so they can create elements themselves..
+                    return page.setElementsForSource(sourceId, createElements(source, list, 0), token);
+                } else {
+                    log("performSourceFind: error: source find failed for source #"+sourceId+" with error "+task.getError());
+                    throw new RuntimeException(task.getError());
+                }
+            }
+        }, executor, token);
+    }
 
+    // Whether the objects start with the data of elements that were laid out as chunks,
+    // that is, if they were not altered by onAfterFind() or similar.
+    private static boolean isStreamed(List<Object> objects, List<Element> streamed) {
+        if (objects.size() < streamed.size()) return false;
+        for (int i = 0; i < streamed.size(); i++) {
+            if (objects.get(i) != streamed.get(i).getData()) return false;
+        }
+        return true;
+    }
+
+    // Completes with the find results, or after the source timeout with partial results or an error.
+    @WorkerThread
+    private Task<List<Object>> findWithTimeout(final ElementSource source, final Pager.Page page,
+                                               final ElementSource.Emitter emitter, final Executor executor) {
+        long timeout = source.getFindTimeout(page);
+        if (timeout < 0) return findWithCache(source, page, emitter, executor, null);
+        final TaskCompletionSource<List<Object>> result = new TaskCompletionSource<>();
+        final CancellationTokenSource timer = new CancellationTokenSource();
+        Task.delay(timeout, timer.getToken()).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (task.isCancelled() || result.getTask().isCompleted()) return null;
+                log("findWithTimeout: source #"+getId(source)+" timed out for page "+page.getPageNumber());
+                emitter.abandon();
+                List<Object> partial = source.onFindTimeout(page);
+                if (partial != null) {
+                    result.trySetResult(partial);
+                } else {
+                    result.trySetError(new TimeoutException("find timed out for page "+page.getPageNumber()));
                 }
-            }, Task.UI_THREAD_EXECUTOR).continueWithTask(new Continuation<List<Object>, Task<Void>>() {
+                return null;
+            }
+        }, executor);
+        findWithCache(source, page, emitter, executor, result.getTask()).continueWith(new Continuation<List<Object>, Void>() {
+            @Override
+            public Void then(Task<List<Object>> task) throws Exception {
+                timer.cancel();
+                if (task.isCancelled()) {
+                    result.trySetCancelled();
+                } else if (task.isFaulted()) {
+                    result.trySetError(task.getError());
+                } else {
+                    result.trySetResult(task.getResult());
+                }
+                return null;
+            }
+        });
+        return result.getTask();
+    }
+
+    // Serves results from the cache, if any and not too old, or finds and caches them.
+    // Stale results are found again in the background, and the page is reloaded if they changed.
+    @WorkerThread
+    private Task<List<Object>> findWithCache(final ElementSource source, final Pager.Page page,
+                                             final ElementSource.Emitter emitter, final Executor executor,
+                                             @Nullable Task<?> deadline) {
+        final FindCache cache = findCache;
+        String sourceKey = cache == null ? null : source.getFindCacheKey(page);
+        if (sourceKey == null) return findWithRetries(source, page, emitter, executor, 0, deadline);
+        final String key = getId(source) + ":" + sourceKey;
+        final List<Object> cached = cache.get(key);
+        if (cached == null) {
+            return findWithRetries(source, page, emitter, executor, 0, deadline).onSuccess(new Continuation<List<Object>, List<Object>>() {
                 @Override
-                public Task<Void> then(Task<List<Object>> task) throws Exception {
-                    if (!task.isFaulted() && !task.isCancelled()) {
-                        // Create Elements out of objects.
-                        List<Object> list = task.getResult();
-                        List<Element> result = new ArrayList<>(list.size());
-                        for (Object o : list) {
-                            // This sucks a little bit, but to now it is better than add typing
-                            // to sources so they can create elements themselves..
-                            result.add(createElement(source, o));
-                        }
-                        return page.setElementsForSource(sourceId, result);
-                    } else {
-                        log("performGroupFind: error: source find failed for source #"+sourceId+" with error "+task.getError());
-                        throw new RuntimeException(task.getError());
+                public List<Object> then(Task<List<Object>> task) throws Exception {
+                    if (task.getResult() != null) cache.put(key, task.getResult());
+                    return task.getResult();
+                }
+            });
+        }
+        if (cache.isStale(key)) {
+            log("findWithCache: serving stale results for "+key+", revalidating.");
+            final CancellationToken token = emitter.getToken();
+            ElementSource.Emitter revalidation = new ElementSource.Emitter(this, source, page, token, false);
+            findWithRetries(source, page, revalidation, executor, 0, null).onSuccess(new Continuation<List<Object>, Void>() {
+                @Override
+                public Void then(Task<List<Object>> task) throws Exception {
+                    List<Object> objects = task.getResult();
+                    if (objects == null) return null;
+                    cache.put(key, objects);
+                    if (!objects.equals(cached) && !token.isCancellationRequested()) {
+                        reloadPageAfterLoad(page.getPageNumber());
                     }
+                    return null;
                 }
-            }, Task.BACKGROUND_EXECUTOR);
-            groupTasks.add(task);
+            }, Task.UI_THREAD_EXECUTOR);
+        } else {
+            log("findWithCache: serving fresh results for "+key);
         }
+        return Task.forResult(cached);
+    }
+
+    // Loads the page again, once any load that is running for it completes.
+    @UiThread
+    private void reloadPageAfterLoad(final int pageNumber) {
+        Task<Void> pending = pageLoads.get(pageNumber);
+        if (pending == null) pending = Task.forResult(null);
+        pending.continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (pageNumber >= pager.getFirstPageNumber() && pageNumber <= pager.getLastPageNumber()) {
+                    loadSinglePage(pageNumber);
+                }
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
 
-        // TODO If one of these fails for some reason, Task.whenAll returns early with the error.
-        // But the other tasks keep going. This is bad because when Task.whenAll() returns,
-        // onPageLoaded() is called. So in that case, for some sources, onPageLoaded() will be
-        // called BEFORE ordering, for example.
-        // That is unacceptable for sources clearing fields in onPageLoaded.
-        return Task.whenAll(groupTasks);
+    // Calls find, then retries after a growing delay while it fails, unless the deadline
+    // task was completed meanwhile.
+    @WorkerThread
+    private Task<List<Object>> findWithRetries(final ElementSource source, final Pager.Page page,
+                                               final ElementSource.Emitter emitter, final Executor executor,
+                                               final int attempt, @Nullable final Task<?> deadline) {
+        final CancellationToken token = emitter.getToken();
+        if (attempt > 0) emitter.reset();
+        return source.find(page, emitter).continueWithTask(new Continuation<List<Object>, Task<List<Object>>>() {
+            @Override
+            public Task<List<Object>> then(Task<List<Object>> task) throws Exception {
+                return emitter.close(task);
+            }
+        }).continueWithTask(new Continuation<List<Object>, Task<List<Object>>>() {
+            @Override
+            public Task<List<Object>> then(Task<List<Object>> task) throws Exception {
+                if (!task.isFaulted() || token.isCancellationRequested()) return task;
+                if (deadline != null && deadline.isCompleted()) return task;
+                if (attempt >= source.getFindRetries(page)) return task;
+                if (!source.shouldRetryFind(page, task.getError(), attempt)) return task;
+                // Exponential backoff, with half of the delay being random.
+                long delay = Math.min(source.getFindRetryDelay(page) << Math.min(attempt, 16), MAX_RETRY_DELAY);
+                delay = delay / 2 + (long) (Math.random() * (delay / 2));
+                log("findWithRetries: source #"+getId(source)+" failed, retrying in "+delay+"ms");
+                return Task.delay(delay, token).continueWithTask(new Continuation<Void, Task<List<Object>>>() {
+                    @Override
+                    public Task<List<Object>> then(Task<Void> task) throws Exception {
+                        if (deadline != null && deadline.isCompleted()) return Task.cancelled();
+                        return findWithRetries(source, page, emitter, executor, attempt + 1, deadline);
+                    }
+                }, executor, token);
+            }
+        }, executor);
     }
 
     @Override
@@ -493,28 +1400,37 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
 
     @Override
     public int getItemViewType(int position) {
-        return pager.getElementForPosition(position).getElementType();
+        int elementType = pager.getElementForPosition(position).getElementType();
+        if (viewPool == null) return elementType;
+        // View types must mean the same in all adapters sharing the pool.
+        int viewType = poolViewTypes.get(elementType, -1);
+        if (viewType == -1) {
+            ElementPresenter presenter = elementTypeMap.get(elementType);
+            if (presenter == null) throw new RuntimeException("No Presenter for this elementType: "+elementType);
+            viewType = viewPool.getViewType(presenter, elementType);
+            poolViewTypes.put(elementType, viewType);
+            poolElementTypes.put(viewType, elementType);
+        }
+        return viewType;
     }
 
     @Override
-    public ElementPresenter.Holder onCreateViewHolder(ViewGroup parent, int elementType) {
-        // Find a reasonable ElementPresenter for this elementType. Try with cache map.
+    public ElementPresenter.Holder onCreateViewHolder(ViewGroup parent, int viewType) {
+        int elementType = viewPool == null ? viewType : poolElementTypes.get(viewType);
+        // Presenters were assigned to element types in setPresenter().
         log("onCreateViewHolder: called for type "+elementType);
         ElementPresenter presenter = elementTypeMap.get(elementType);
-        if (presenter == null) {
-            // Cycle to get reasonable presenter.
-            for (ElementPresenter ep : presenters) {
-                log("onCreateViewHolder: checking presenter "+ep);
-                log("onCreateViewHolder: checking types are"+ep.getElementTypes());
-                if (ep.getElementTypes().contains(elementType)) {
-                    presenter = ep;
-                    elementTypeMap.put(elementType, ep);
-                    break;
-                }
-            }
-        }
         if (presenter == null) throw new RuntimeException("No Presenter for this elementType: "+elementType);
-        return presenter.instantiateHolder(parent, elementType);
+        ElementPresenter.Holder holder = prewarmer.take(elementType);
+        if (holder == null) {
+            holder = presenter.instantiateHolder(parent, elementType);
+            prewarmer.onHolderCreated(elementType);
+        }
+        return holder;
+    }
+
+    /* package */ ElementPresenter getPresenter(int elementType) {
+        return elementTypeMap.get(elementType);
     }
 
     @Override
@@ -522,12 +1438,65 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
         log("onBindViewHolder: pos="+position+", type="+holder.getElementType());
         Pager.Page page = pager.getPageForPosition(position);
         Element element = page.getElementForAbsolutePosition(position);
-        elementTypeMap.get(holder.getElementType()).onBind(page, holder, element);
+        ElementPresenter presenter = elementTypeMap.get(holder.getElementType());
+        holder.presenter = presenter;
+        holder.page = page;
+        holder.element = element;
+        presenter.onBind(page, holder, element);
+        if (prefetcher.isEnabled()) {
+            prefetcher.onBind(position);
+        }
+        if (page.getPageNumber() != lastBoundPage) {
+            lastBoundPage = page.getPageNumber();
+            if (evictionWindow >= 0 || page.isEvicted()) {
+                // Can't touch the dataset while binding. Post.
+                getHandler().removeCallbacks(evictionRunnable);
+                getHandler().post(evictionRunnable);
+            }
+        }
+    }
+
+    @Override
+    public void onViewRecycled(ElementPresenter.Holder holder) {
+        super.onViewRecycled(holder);
+        // Don't keep model data in pooled holders.
+        holder.page = null;
+        holder.element = null;
+    }
+
+    // Default presenter for TYPE_UNLOADED, if no other presenter claims it.
+    private static class UnloadedPresenter extends ElementPresenter {
+
+        private UnloadedPresenter() {
+            super(null);
+        }
+
+        @NonNull
+        @Override
+        protected List<Integer> getElementTypes() {
+            return new ArrayList<>(Arrays.asList(TYPE_UNLOADED));
+        }
+
+        @Override
+        protected View onCreateView(ViewGroup parent, int elementType) {
+            return LayoutInflater.from(parent.getContext()).inflate(R.layout.placeholder_unloaded, parent, false);
+        }
     }
 
     @Override
     public void onAttachedToRecyclerView(RecyclerView recyclerView) {
         super.onAttachedToRecyclerView(recyclerView);
+        prewarmer.attach(recyclerView);
+        if (viewPool != null) {
+            recyclerView.setRecycledViewPool(viewPool);
+        } else {
+            // Apply presenters capacities to the RecyclerView own pool.
+            RecyclerView.RecycledViewPool pool = recyclerView.getRecycledViewPool();
+            for (int i = 0; i < elementTypeMap.size(); i++) {
+                int max = elementTypeMap.valueAt(i).getMaxRecycledViews(elementTypeMap.keyAt(i));
+                if (max >= 0) pool.setMaxRecycledViews(elementTypeMap.keyAt(i), max);
+            }
+        }
         if (!initialized) {
             // Auto load the first page.
             initialized = true;
@@ -543,65 +1512,109 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
             // Restore page count.
             pager.restoreState(state);
 
-            // Restore everything else, one page at a time.
-            final int pages = pager.getNumberOfPages();
-            final int sources = allSources.size();
-            for (int j = 0; j < pages; j++) {
-                final Pager.Page page = pager.getPage(j);
-                // Request a background thread for this page.
-                Task<Void> chain = Task.callInBackground(new Callable<Void>() {
+            // Restore everything else. Page data might be in the state file.
+            final String handle = state.getString("stateFile");
+            if (handle == null) {
+                restorePages(state);
+            } else if (stateFile == null) {
+                log("restore: state was saved to a file, but no state file is set.");
+                findRestoredPages();
+            } else {
+                stateFile.read(handle).continueWith(new Continuation<Bundle, Void>() {
                     @Override
-                    public Void call() throws Exception {
+                    public Void then(Task<Bundle> task) throws Exception {
+                        if (task.isFaulted()) {
+                            log("restore: could not read state file: "+task.getError());
+                            findRestoredPages();
+                        } else {
+                            restorePages(task.getResult());
+                        }
                         return null;
                     }
-                });
-                for (int i = 0; i < sources; i++) {
-                    // Get source and id.
-                    final ElementSource source = allSources.get(i);
-                    final int sourceId = getId(source);
-                    // Restore source stuff.
-                    chain = chain.continueWithTask(new Continuation<Void, Task<List<Object>>>() {
-                        @Override
-                        public Task<List<Object>> then(Task<Void> task) throws Exception {
-                            // Get source own bundle and restore page state.
-                            String key = "source:"+source.getClass().getSimpleName()+":"+sourceId;
-                            Bundle sourceBundle = state.getBundle(key);
-                            if (sourceBundle == null) {
-                                throw new RuntimeException("Invalid bundle for key: "+key);
-                            }
-                            return source.restorePageState(page, sourceBundle);
+                }, Task.UI_THREAD_EXECUTOR);
+            }
+        }
+    }
 
-                        }
-                    }).onSuccessTask(new Continuation<List<Object>, Task<Void>>() {
-                        @Override
-                        public Task<Void> then(Task<List<Object>> task) throws Exception {
-                            List<Object> objects = task.getResult();
-                            final List<Element> elements = new ArrayList<>(objects.size());
-                            log("restore: found " + objects.size() + " elements");
-                            for (Object object : objects) {
-                                elements.add(createElement(source, object));
-                            }
-                            return page.setElementsForSource(sourceId, elements);
-                        }
-                    });
+    // Page data was lost. Find pages again.
+    @UiThread
+    private void findRestoredPages() {
+        for (final Pager.Page page : pager.getPages()) {
+            // Merged pages can't be found again, so they stay empty.
+            if (page.hasSlots() || page.isEvicted() || page.isMerged()) continue;
+            findPage(page, false).continueWith(new Continuation<Void, Void>() {
+                @Override
+                public Void then(Task<Void> task) throws Exception {
+                    dispatchPageLoaded(page);
+                    return null;
                 }
+            }, Task.UI_THREAD_EXECUTOR);
+        }
+    }
 
-                // After restoring all sources for this page...
-                chain.continueWith(new Continuation<Void, Void>() {
+    // Restores each page from the source bundles in state, one page at a time.
+    @UiThread
+    private void restorePages(final Bundle state) {
+        final int sources = allSources.size();
+        for (final Pager.Page page : pager.getPages()) {
+            if (page.hasSlots()) continue; // Nothing was saved.
+            final CancellationToken token = page.onLoadStarted(false);
+            final Executor executor = prioritize(restoreExecutor, page);
+            // Request a background thread for this page.
+            Task<Void> chain = Task.call(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return null;
+                }
+            }, executor);
+            for (int i = 0; i < sources; i++) {
+                // Get source and id.
+                final ElementSource source = allSources.get(i);
+                final int sourceId = getId(source);
+                // Restore source stuff.
+                chain = chain.continueWithTask(new Continuation<Void, Task<List<Object>>>() {
                     @Override
-                    public Void then(Task<Void> task) throws Exception {
-                        // Dispatch onPageLoaded() for this page.
-                        for (int i = 0; i < sources; i++) {
-                            ElementSource source = allSources.get(i);
-                            source.onPageLoaded(page, page.getElements());
+                    public Task<List<Object>> then(Task<Void> task) throws Exception {
+                        // Get source own bundle and restore page state.
+                        String key = getStateKey(source);
+                        Bundle sourceBundle = state.getBundle(key);
+                        if (sourceBundle == null) {
+                            throw new RuntimeException("Invalid bundle for key: "+key);
                         }
-                        return null;
+                        return source.restorePageState(page, sourceBundle);
+
                     }
-                }, Task.UI_THREAD_EXECUTOR);
+                }, executor).onSuccessTask(new Continuation<List<Object>, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(Task<List<Object>> task) throws Exception {
+                        List<Object> objects = task.getResult();
+                        log("restore: found " + objects.size() + " elements");
+                        return page.setElementsForSource(sourceId, createElements(source, objects, 0), token);
+                    }
+                }, executor);
             }
+
+            // After restoring all sources for this page...
+            chain.continueWith(new Continuation<Void, Void>() {
+                @Override
+                public Void then(Task<Void> task) throws Exception {
+                    // Dispatch onPageLoaded() for this page.
+                    page.onLoadEnded(token);
+                    dispatchPageLoaded(page);
+                    return null;
+                }
+            }, Task.UI_THREAD_EXECUTOR);
         }
     }
 
+    @Override
+    public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        prewarmer.detach();
+        // The pool might drop our types while we are detached.
+        clearPoolViewTypes();
+    }
+
     /* package */ Set<Integer> getDependencies(int sourceId) {
         return dependencyMap.get(sourceId);
     }
@@ -616,7 +1629,9 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
      * - save state of presenters through {@link ElementPresenter#saveState(Bundle)}
      * - save state of pages through {@link ElementSource#savePageState(Pager.Page, List, Bundle)}
      * Each source is passed a unique Bundle so there is no risk of overriding.
+     * If a {@link StateFile} was set and page data is too big, it is saved there instead.
      *
+     * @see #setStateFile(StateFile)
      * @see ElementSource#savePageState(Pager.Page, List, Bundle)
      * @param outState an out Bundle
      */
@@ -634,22 +1649,27 @@ public final class ElementAdapter extends RecyclerView.Adapter<ElementPresenter.
         pager.saveState(outState);
 
         // Create a new bundle for each source.
+        Bundle data = new Bundle();
         for (int i = 0; i < allSources.size(); i++) {
             ElementSource source = allSources.get(i);
             int sourceId = getId(source);
             Bundle sourceBundle = new Bundle();
 
-            int count = pager.getNumberOfPages();
-            for (int j = 0; j < count; j++) {
-                Pager.Page page = pager.getPage(j);
+            for (Pager.Page page : pager.getPages()) {
                 List<Object> list = page.getDataBySource(sourceId);
                 log("saveState: saving "+list.size()+" elements.");
                 source.savePageState(page, list, sourceBundle);
             }
 
-            // This assumes that allSources will have the same order later.
-            String key = "source:"+source.getClass().getSimpleName()+":"+sourceId;
-            outState.putBundle(key, sourceBundle);
+            data.putBundle(getStateKey(source), sourceBundle);
+        }
+
+        // If too big, page data goes to the state file.
+        String handle = stateFile == null ? null : stateFile.write(data);
+        if (handle != null) {
+            outState.putString("stateFile", handle);
+        } else {
+            outState.putAll(data);
         }
     }
 
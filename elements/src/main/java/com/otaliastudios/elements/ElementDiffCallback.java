@@ -0,0 +1,52 @@
+package com.otaliastudios.elements;
+
+import android.support.v7.util.DiffUtil;
+
+import java.util.List;
+
+/**
+ * A {@link DiffUtil.Callback} comparing old and new elements of a single source, using
+ * {@link ElementSource#areItemsTheSame(Object, Object)} and
+ * {@link ElementSource#areContentsTheSame(Object, Object)}.
+ *
+ * Unloaded placeholders are the same item as anything, so that they are changed in place
+ * instead of being removed and inserted again.
+ */
+/* package */ class ElementDiffCallback extends DiffUtil.Callback {
+
+    private final ElementSource source;
+    private final List<Element> oldElements;
+    private final List<Element> newElements;
+
+    /* package */ ElementDiffCallback(ElementSource source, List<Element> oldElements, List<Element> newElements) {
+        this.source = source;
+        this.oldElements = oldElements;
+        this.newElements = newElements;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return oldElements.size();
+    }
+
+    @Override
+    public int getNewListSize() {
+        return newElements.size();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        Element oldElement = oldElements.get(oldItemPosition);
+        if (oldElement.isUnloaded()) return true;
+        return source.areItemsTheSame(oldElement.getData(), newElements.get(newItemPosition).getData());
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        Element oldElement = oldElements.get(oldItemPosition);
+        Element newElement = newElements.get(newItemPosition);
+        if (oldElement.isUnloaded()) return false;
+        if (oldElement.getElementType() != newElement.getElementType()) return false;
+        return source.areContentsTheSame(oldElement.getData(), newElement.getData());
+    }
+}
@@ -85,6 +85,7 @@ public abstract class ElementPresenter {
      * {@link ElementSource#getElementType(Object)}.
      * If multiple ElementPresenter ask to layout a certain element type, the priority is given
      * based on the order of presenters passed to {@link ElementAdapter#setPresenter(ElementPresenter...)}.
+     * This is called once, when the presenter is set, so the types should not change later.
      *
      * @return a list of element types this ElementPresenter is able to lay out.
      */
@@ -93,12 +94,59 @@ public abstract class ElementPresenter {
         return new ArrayList<>(Arrays.asList(0));
     }
 
+    /**
+     * Returns how many holders of this element type should be kept in the pool of recycled views,
+     * to be reused when scrolling or, with a shared {@link ElementViewPool}, by other lists.
+     * Defaults to -1, which means the {@code RecyclerView} default.
+     *
+     * @param elementType the element type
+     * @return the pool capacity for this type, or -1
+     */
+    protected int getMaxRecycledViews(int elementType) {
+        return -1;
+    }
+
+    /**
+     * Returns how many holders of this element type should be created ahead of time, when the
+     * UI thread is idle, after a page containing this type is loaded. This avoids inflating
+     * during the scroll when new types come in. The count is capped by the number of elements
+     * of this type in the page. Defaults to 0, which means that holders are only created
+     * when needed.
+     *
+     * @param elementType the element type
+     * @return the number of holders to create ahead of time
+     */
+    protected int getPrewarmCount(int elementType) {
+        return 0;
+    }
+
     /* package */ final Holder instantiateHolder(ViewGroup parent, int elementType) {
         Holder holder = new Holder(onCreateView(parent, elementType), elementType, onRegisterChildViews(elementType));
+        holder.rootClickListener = new RootClickListener(holder);
         onInitialize(holder);
         return holder;
     }
 
+    // Installed on the root view during binds. There's one per holder, so binding allocates nothing.
+    // Holders might be bound by another presenter of the same class, so this goes through holder.presenter.
+    private static class RootClickListener implements View.OnClickListener {
+        private final Holder holder;
+
+        private RootClickListener(Holder holder) {
+            this.holder = holder;
+        }
+
+        @Override
+        public void onClick(View view) {
+            if (holder.element != null) holder.presenter.onRootClick(holder, holder.page, holder.element);
+        }
+    }
+
+    // Called when the root view of a holder is clicked, with what it was last bound to.
+    /* package */ void onRootClick(Holder holder, Pager.Page page, Element element) {
+        if (listener != null) listener.onElementClick(page, holder, element);
+    }
+
     /**
      * Asks to return a View for the given elementType.
      *
@@ -145,12 +193,7 @@ public abstract class ElementPresenter {
     @CallSuper
     @UiThread
     protected void onBind(final Pager.Page page, final Holder holder, final Element element) {
-        holder.getRoot().setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                if (listener != null) listener.onElementClick(page, holder, element);
-            }
-        });
+        holder.getRoot().setOnClickListener(holder.rootClickListener);
     }
 
     /**
@@ -163,6 +206,12 @@ public abstract class ElementPresenter {
         private View root;
         private SparseArray<ViewReference> views;
 
+        // Set at creation, and at each bind.
+        /* package */ View.OnClickListener rootClickListener;
+        /* package */ ElementPresenter presenter;
+        /* package */ Pager.Page page;
+        /* package */ Element element;
+
         private Holder(View itemView, int elementType, List<ViewReference> views) {
             super(itemView);
             this.elementType = elementType;
@@ -8,6 +8,9 @@ import android.support.annotation.WorkerThread;
 import java.util.ArrayList;
 import java.util.List;
 
+import bolts.CancellationToken;
+import bolts.CancellationTokenSource;
+import bolts.Continuation;
 import bolts.Task;
 
 /**
@@ -89,6 +92,11 @@ public abstract class ElementSource {
         }
     }
 
+    // Whether saved page states are still valid in another process, e.g. in a PageStore.
+    /* package */ final boolean isPersistable() {
+        return getSerializer() != null && !(getSerializer() instanceof StaticSerializer);
+    }
+
     @WorkerThread
     /* package */ final Task<List<Object>> restorePageState(Pager.Page page, Bundle outState) {
         if (getSerializer() != null) {
@@ -194,6 +202,126 @@ public abstract class ElementSource {
     @WorkerThread
     protected abstract Task<List<Object>> find(Pager.Page page);
 
+    /**
+     * Same as {@link #find(Pager.Page)}, but receives a token that is cancelled when this load
+     * is superseded, for instance because the page was reloaded or removed. Once cancelled,
+     * results are ignored anyway: sources doing expensive work can override this to stop early,
+     * or return {@link Task#cancelled()}.
+     *
+     * @param page the current page
+     * @param token a token for this load
+     * @return a Task for the find operation
+     */
+    @WorkerThread
+    protected Task<List<Object>> find(Pager.Page page, CancellationToken token) {
+        return find(page);
+    }
+
+    /**
+     * Same as {@link #find(Pager.Page, CancellationToken)}, but lets this source lay out its
+     * objects in chunks, as soon as they are available, through {@link Emitter#emit(List)}.
+     * This is useful for large pages that come from a cursor or a network stream, so that
+     * the first items appear before the whole page is ready.
+     *
+     * The returned task should complete, once done, with the objects that were not emitted,
+     * if any. Callbacks like {@link #onAfterFind(Pager.Page, Task)} receive all the objects:
+     * those emitted, followed by the task result.
+     *
+     * @param page the current page
+     * @param emitter an emitter for this load
+     * @return a Task for the find operation
+     */
+    @WorkerThread
+    protected Task<List<Object>> find(Pager.Page page, Emitter emitter) {
+        return find(page, emitter.getToken());
+    }
+
+    /**
+     * Returns the maximum time, in milliseconds, that {@link #find(Pager.Page)} can take,
+     * including retries. After this, {@link #onFindTimeout(Pager.Page)} is called and late
+     * results are ignored. Defaults to -1, which means no timeout.
+     *
+     * @param page the current page
+     * @return the timeout in milliseconds, or -1
+     */
+    @WorkerThread
+    protected long getFindTimeout(Pager.Page page) {
+        return -1;
+    }
+
+    /**
+     * Called when {@link #find(Pager.Page)} did not complete within {@link #getFindTimeout(Pager.Page)}.
+     * Sources that have partial results can return them here. Otherwise, this returns null
+     * and the find fails with a {@link java.util.concurrent.TimeoutException}, which goes to
+     * {@link #onFindError(Pager.Page, Exception)} as usual.
+     *
+     * @param page the current page
+     * @return partial results, or null
+     */
+    @WorkerThread
+    @Nullable
+    protected List<Object> onFindTimeout(Pager.Page page) {
+        return null;
+    }
+
+    /**
+     * Returns how many times a failed {@link #find(Pager.Page)} should be retried.
+     * Retries happen in a background thread, after a delay that doubles each time, starting
+     * from {@link #getFindRetryDelay(Pager.Page)}, with some randomness so that many clients
+     * do not retry at the same time. Only the last result is laid out. Defaults to 0.
+     *
+     * @param page the current page
+     * @return the number of retries
+     */
+    @WorkerThread
+    protected int getFindRetries(Pager.Page page) {
+        return 0;
+    }
+
+    /**
+     * Returns the delay, in milliseconds, before retrying a failed find for the first time.
+     * See {@link #getFindRetries(Pager.Page)}. Defaults to 500.
+     *
+     * @param page the current page
+     * @return the delay in milliseconds
+     */
+    @WorkerThread
+    protected long getFindRetryDelay(Pager.Page page) {
+        return 500;
+    }
+
+    /**
+     * Called when {@link #find(Pager.Page)} failed and there are retries left.
+     * Return false if the error is not transient and should go to
+     * {@link #onFindError(Pager.Page, Exception)} straight away.
+     *
+     * @param page the current page
+     * @param exception the error
+     * @param attempt the attempt that failed, starting from 0
+     * @return whether to retry
+     */
+    @WorkerThread
+    protected boolean shouldRetryFind(Pager.Page page, Exception exception, int attempt) {
+        return true;
+    }
+
+    /**
+     * Returns the key for caching the results of {@link #find(Pager.Page)} for this page,
+     * when a {@link FindCache} is set through {@link ElementAdapter#setFindCache(FindCache)}.
+     * Sources whose results depend on something else than the page number, like a query or
+     * a page token, should include it here. Return null to never cache.
+     *
+     * Defaults to the class name and the page number.
+     *
+     * @param page the current page
+     * @return a key, or null
+     */
+    @WorkerThread
+    @Nullable
+    protected String getFindCacheKey(Pager.Page page) {
+        return getClass().getName() + ":" + page.getPageNumber();
+    }
+
     /**
      * Called right after {@link #find(Pager.Page)} for this page, when the find task has
      * ended and the objects can be queried through the passed task.
@@ -229,6 +357,37 @@ public abstract class ElementSource {
         return null;
     }
 
+    // Diff
+
+    /**
+     * Used when reloads are diffed, see {@link ElementAdapter#setDiffEnabled(boolean)}.
+     * Returns true if the two objects represent the same item, for example if they have the same
+     * id. Defaults to {@link Object#equals(Object)}.
+     *
+     * @param oldData object currently in the page
+     * @param newData object returned by find()
+     * @return true if they are the same item
+     */
+    @WorkerThread
+    protected boolean areItemsTheSame(Object oldData, Object newData) {
+        return oldData == null ? newData == null : oldData.equals(newData);
+    }
+
+    /**
+     * Used when reloads are diffed, see {@link ElementAdapter#setDiffEnabled(boolean)}.
+     * Called for objects that are the same item, as returned by
+     * {@link #areItemsTheSame(Object, Object)}. Returns true if they would be laid out in the same
+     * way, so that there is no need to bind them again. Defaults to {@link Object#equals(Object)}.
+     *
+     * @param oldData object currently in the page
+     * @param newData object returned by find()
+     * @return true if contents are the same
+     */
+    @WorkerThread
+    protected boolean areContentsTheSame(Object oldData, Object newData) {
+        return oldData == null ? newData == null : oldData.equals(newData);
+    }
+
     // Order
 
     /**
@@ -290,6 +449,45 @@ public abstract class ElementSource {
     @UiThread
     protected void onPageLoaded(Pager.Page page, List<Element> pageElements) { }
 
+    // Known size
+
+    /**
+     * If this source knows the total number of objects it will return across all pages, for
+     * example from a database count, return it here along with {@link #getKnownPageSize()}.
+     * After page 0 is loaded through {@link ElementAdapter#load()}, the remaining pages are laid
+     * out with placeholders of type {@link ElementAdapter#TYPE_UNLOADED}, so the list has its
+     * full size from the start. Each page is then found when one of its positions is bound.
+     *
+     * Sources that declare a size should not append pagination elements. If more sources
+     * declare a size, the first one is used.
+     *
+     * @return the total number of objects, or -1 if unknown
+     */
+    @WorkerThread
+    protected int getKnownSize() { return -1; }
+
+    /**
+     * The number of objects this source returns for each page. Only used if
+     * {@link #getKnownSize()} is declared.
+     *
+     * @return objects per page, or -1 if unknown
+     */
+    @WorkerThread
+    protected int getKnownPageSize() { return -1; }
+
+    /**
+     * Called when a page is removed from the adapter, either explicitly or because it was
+     * merged into the previous page during compaction. In the latter case, its elements
+     * were already moved to the previous page. Page numbers never change, so sources
+     * that build queries from {@link Pager.Page#getPageNumber()} need no changes.
+     *
+     * @see ElementAdapter#removePage(int)
+     * @see ElementAdapter#compactPages(int)
+     * @param page the removed page
+     */
+    @UiThread
+    protected void onPageRemoved(Pager.Page page) { }
+
     /**
      * Lets you send an integer (like a view type) to the {@link ElementPresenter} when binding.
      * This means that this objects will be laid out by a presenters who declares to accept
@@ -316,4 +514,104 @@ public abstract class ElementSource {
         //noinspection unchecked
         return new SourceMonitor(getClass(), callback);
     }
+
+    /**
+     * Passed to {@link #find(Pager.Page, Emitter)} to lay out objects in chunks, before the find
+     * task completes. Each chunk is inserted with a single notification, after the previous
+     * ones. This can be used from any thread.
+     *
+     * Chunks are laid out right away only if the source has no dependencies, and if it is not
+     * going to be diffed against old elements (see {@link ElementAdapter#setDiffEnabled(boolean)}).
+     * Otherwise, they are laid out with the rest when the find task completes.
+     */
+    public final static class Emitter {
+
+        private final ElementAdapter adapter;
+        private final ElementSource source;
+        private final Pager.Page page;
+        private final CancellationToken token;
+        private final boolean direct;
+        private final List<Object> objects = new ArrayList<>();
+        private final List<Element> elements = new ArrayList<>();
+        private Task<Void> chain = Task.forResult(null);
+        private boolean closed;
+        private CancellationTokenSource storedToken;
+
+        /* package */ Emitter(ElementAdapter adapter, ElementSource source, Pager.Page page,
+                              CancellationToken token, boolean direct) {
+            this.adapter = adapter;
+            this.source = source;
+            this.page = page;
+            this.token = token;
+            this.direct = direct;
+        }
+
+        // Cancelled when the first chunk is laid out, so that stored elements don't replace it.
+        /* package */ synchronized void setStoredToken(@Nullable CancellationTokenSource storedToken) {
+            this.storedToken = storedToken;
+        }
+
+        /**
+         * Returns a token that is cancelled when this load is superseded.
+         * @return a token
+         */
+        public CancellationToken getToken() {
+            return token;
+        }
+
+        /**
+         * Emits a chunk of objects. Objects emitted after the find task has completed,
+         * or after this load was cancelled, are ignored.
+         * @param chunk the objects
+         */
+        public synchronized void emit(List<Object> chunk) {
+            if (closed || token.isCancellationRequested() || chunk.isEmpty()) return;
+            objects.addAll(chunk);
+            if (!direct) return;
+            if (storedToken != null) storedToken.cancel();
+            final int sourceId = adapter.getId(source);
+            final List<Element> previous = new ArrayList<>(elements);
+            final List<Element> created = adapter.createElements(source, chunk, 0);
+            elements.addAll(created);
+            chain = chain.continueWithTask(new Continuation<Void, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<Void> task) throws Exception {
+                    return page.appendElementsForSource(sourceId, previous, created, token);
+                }
+            });
+        }
+
+        // Called with the find task. Returns all the objects, once chunks are laid out.
+        /* package */ synchronized Task<List<Object>> close(final Task<List<Object>> task) {
+            closed = true;
+            if (objects.isEmpty()) return task;
+            final List<Object> emitted = new ArrayList<>(objects);
+            return chain.continueWithTask(new Continuation<Void, Task<List<Object>>>() {
+                @Override
+                public Task<List<Object>> then(Task<Void> ignored) throws Exception {
+                    if (task.isFaulted() || task.isCancelled()) return task;
+                    List<Object> all = new ArrayList<>(emitted);
+                    if (task.getResult() != null) all.addAll(task.getResult());
+                    return Task.forResult(all);
+                }
+            });
+        }
+
+        // Called when the find has timed out. Further chunks are ignored.
+        /* package */ synchronized void abandon() {
+            closed = true;
+        }
+
+        // Called before retrying. The next chunk will replace the ones laid out so far.
+        /* package */ synchronized void reset() {
+            closed = false;
+            objects.clear();
+            elements.clear();
+        }
+
+        // Elements that were laid out as chunks, in order.
+        /* package */ synchronized List<Element> getElements() {
+            return new ArrayList<>(elements);
+        }
+    }
 }
@@ -0,0 +1,142 @@
+package com.otaliastudios.elements;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link RecyclerView.RecycledViewPool} that can be shared by many {@link ElementAdapter}s, so
+ * that holders are reused across lists instead of being inflated again, for example when
+ * navigating between screens or ViewPager tabs.
+ *
+ * Holders are pooled by presenter class, presenter context and element type. This means that a
+ * holder created by a presenter can later be bound by another presenter of the same class, and
+ * {@link ElementPresenter#onInitialize(ElementPresenter.Holder)} should not depend on the
+ * presenter instance. Pool capacities are taken from
+ * {@link ElementPresenter#getMaxRecycledViews(int)}.
+ *
+ * The pool only holds contexts weakly, but pooled views hold their context, so call
+ * {@link #clear(Context)} when a context is destroyed.
+ *
+ * @see ElementAdapter#setViewPool(ElementViewPool)
+ */
+public class ElementViewPool extends RecyclerView.RecycledViewPool {
+
+    private static ElementViewPool shared;
+
+    /**
+     * Returns a pool shared by the whole process.
+     * @return the shared pool
+     */
+    @UiThread
+    @NonNull
+    public static ElementViewPool getShared() {
+        if (shared == null) shared = new ElementViewPool();
+        return shared;
+    }
+
+    // Holds the context weakly, so that the shared pool does not leak it.
+    private final static class Key {
+        private final Class<?> presenterClass;
+        private final WeakReference<Context> context;
+        private final int contextHash;
+        private final int elementType;
+
+        private Key(ElementPresenter presenter, int elementType) {
+            Context context = presenter.getContext();
+            this.presenterClass = presenter.getClass();
+            this.context = context == null ? null : new WeakReference<>(context);
+            this.contextHash = System.identityHashCode(context);
+            this.elementType = elementType;
+        }
+
+        @Nullable
+        private Context getContext() {
+            return context == null ? null : context.get();
+        }
+
+        private boolean isStale() {
+            return context != null && context.get() == null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            if (isStale() || other.isStale()) return false;
+            return presenterClass == other.presenterClass && getContext() == other.getContext()
+                    && elementType == other.elementType;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = presenterClass.hashCode();
+            result = 31 * result + contextHash;
+            return 31 * result + elementType;
+        }
+    }
+
+    private final Map<Key, Integer> viewTypes = new HashMap<>();
+    private final SparseArray<Key> keys = new SparseArray<>();
+    private int nextViewType;
+
+    /**
+     * Returns a view type for holders of this presenter and element type,
+     * that is the same for all the adapters using this pool.
+     * Adapters should cache the result, since this allocates.
+     */
+    @UiThread
+    /* package */ int getViewType(@NonNull ElementPresenter presenter, int elementType) {
+        Key key = new Key(presenter, elementType);
+        Integer viewType = viewTypes.get(key);
+        if (viewType == null) {
+            removeStaleKeys();
+            viewType = nextViewType++;
+            viewTypes.put(key, viewType);
+            keys.put(viewType, key);
+            int max = presenter.getMaxRecycledViews(elementType);
+            if (max >= 0) setMaxRecycledViews(viewType, max);
+        }
+        return viewType;
+    }
+
+    // Drops the types whose context was collected.
+    private void removeStaleKeys() {
+        for (int i = 0; i < keys.size(); i++) {
+            Key key = keys.valueAt(i);
+            if (!key.isStale()) continue;
+            setMaxRecycledViews(keys.keyAt(i), 0);
+            viewTypes.remove(key);
+            keys.removeAt(i);
+            i--;
+        }
+    }
+
+    /**
+     * Removes the pooled holders of presenters created with this context.
+     * This should be called when the context is destroyed, e.g. from {@code Activity.onDestroy()}.
+     *
+     * @param context the context, or null for presenters without context
+     */
+    @UiThread
+    public void clear(@Nullable Context context) {
+        removeStaleKeys();
+        for (int i = 0; i < keys.size(); i++) {
+            Key key = keys.valueAt(i);
+            if (key.getContext() != context) continue;
+            int viewType = keys.keyAt(i);
+            // Drops all the pooled holders of this type.
+            setMaxRecycledViews(viewType, 0);
+            viewTypes.remove(key);
+            keys.removeAt(i);
+            i--;
+        }
+    }
+}
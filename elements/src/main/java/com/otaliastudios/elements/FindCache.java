@@ -0,0 +1,134 @@
+package com.otaliastudios.elements;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bolts.Task;
+
+/**
+ * An in-memory cache for the results of {@link ElementSource#find(Pager.Page)}, keyed by source
+ * and page. When set through {@link ElementAdapter#setFindCache(FindCache)}, pages that were
+ * found less than {@code ttl} milliseconds ago are served from here, and sources are not asked.
+ * The same cache can be shared by different adapters, for example to make a screen that is
+ * opened again display its content immediately.
+ *
+ * The cache holds at most {@code maxEntries} results, and drops the least recently used first.
+ * Only successful results are cached, as they were returned by find, before
+ * {@link ElementSource#onAfterFind(Pager.Page, Task)} and similar callbacks.
+ *
+ * With {@link #setStaleWhileRevalidate(long)}, results that are older than the ttl can still
+ * be served for some time, while they are found again in the background. If the new results
+ * are different, the page is loaded again.
+ *
+ * @see ElementSource#getFindCacheKey(Pager.Page)
+ */
+public class FindCache {
+
+    private final static class Entry {
+        private final List<Object> objects;
+        private final long time;
+
+        private Entry(List<Object> objects, long time) {
+            this.objects = objects;
+            this.time = time;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttl;
+    private long staleWindow;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Creates a new cache.
+     * @param maxEntries the maximum number of cached results
+     * @param ttl the time, in milliseconds, after which results are not fresh anymore
+     */
+    public FindCache(int maxEntries, long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > FindCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Lets results that are older than the ttl, but not more than {@code window} milliseconds
+     * older, be served while they are found again in the background.
+     * Defaults to 0, which means that stale results are never served.
+     *
+     * @param window the stale window in milliseconds
+     */
+    public synchronized void setStaleWhileRevalidate(long window) {
+        this.staleWindow = window;
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Removes the cached results whose key starts with the given prefix.
+     * Keys are made of the source id in its adapter, followed by a colon and by
+     * {@link ElementSource#getFindCacheKey(Pager.Page)}.
+     *
+     * @param prefix a key prefix
+     */
+    public synchronized void invalidate(String prefix) {
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) iterator.remove();
+        }
+    }
+
+    /**
+     * Returns a copy of the cached results for this key, if they can be served.
+     * @param key the key
+     * @return the results, or null
+     */
+    @Nullable
+    /* package */ synchronized List<Object> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (getAge(entry) >= ttl + staleWindow) {
+            entries.remove(key);
+            return null;
+        }
+        return new ArrayList<>(entry.objects);
+    }
+
+    /**
+     * Whether the results for this key are older than the ttl and should be found again.
+     * @param key the key
+     * @return true if stale or missing
+     */
+    /* package */ synchronized boolean isStale(String key) {
+        Entry entry = entries.get(key);
+        return entry == null || getAge(entry) >= ttl;
+    }
+
+    /* package */ synchronized void put(String key, List<Object> objects) {
+        entries.put(key, new Entry(new ArrayList<>(objects), now()));
+    }
+
+    private long getAge(Entry entry) {
+        return now() - entry.time;
+    }
+
+    // Overridden by tests.
+    /* package */ long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
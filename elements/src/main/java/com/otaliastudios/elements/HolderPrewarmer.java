@@ -0,0 +1,138 @@
+package com.otaliastudios.elements;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.ViewGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates holders ahead of time, when the UI thread is idle, so that they are ready when the
+ * list scrolls to element types it has not shown yet. When a page is loaded, its element types
+ * are counted, and each presenter decides how many holders to keep ready through
+ * {@link ElementPresenter#getPrewarmCount(int)}. Holders are created one per idle pass, so that
+ * frames are never delayed by more than a single inflation.
+ *
+ * Views must be created in the UI thread, since presenters inflate them with the RecyclerView
+ * as parent, and their constructors might need a Looper.
+ */
+/* package */ class HolderPrewarmer implements MessageQueue.IdleHandler {
+
+    private final static String TAG = HolderPrewarmer.class.getSimpleName();
+    private final static boolean DEBUG = false;
+    private static void log(String what) {
+        if (DEBUG) Log.e(TAG, what);
+    }
+
+    private final ElementAdapter adapter;
+    private ViewGroup parent;
+    private boolean scheduled;
+
+    private final SparseArray<List<ElementPresenter.Holder>> warm = new SparseArray<>();
+    private final SparseIntArray created = new SparseIntArray(); // Holders created, by type.
+    private final SparseIntArray pending = new SparseIntArray(); // Holders to create, by type.
+    private final SparseIntArray histogram = new SparseIntArray(); // Reused by onPageLoaded().
+
+    /* package */ HolderPrewarmer(ElementAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    @UiThread
+    /* package */ void attach(ViewGroup parent) {
+        this.parent = parent;
+    }
+
+    // Warm holders belong to this parent. Drop them.
+    @UiThread
+    /* package */ void detach() {
+        parent = null;
+        if (scheduled) Looper.myQueue().removeIdleHandler(this);
+        scheduled = false;
+        warm.clear();
+        created.clear();
+        pending.clear();
+    }
+
+    /**
+     * Schedules holders for the element types of this page, up to what presenters ask for,
+     * counting the holders that were already created for each type.
+     * Evicted pages and pages with slots only have unloaded elements, and are skipped without
+     * filling their slots.
+     */
+    @UiThread
+    /* package */ void onPageLoaded(Pager.Page page) {
+        if (parent == null || page.isEvicted() || page.hasSlots()) return;
+        histogram.clear();
+        for (Element element : page.getElements()) {
+            histogram.put(element.getElementType(), histogram.get(element.getElementType()) + 1);
+        }
+        for (int i = 0; i < histogram.size(); i++) {
+            int elementType = histogram.keyAt(i);
+            ElementPresenter presenter = adapter.getPresenter(elementType);
+            if (presenter == null) continue;
+            int target = Math.min(histogram.valueAt(i), presenter.getPrewarmCount(elementType));
+            int missing = target - created.get(elementType) - pending.get(elementType);
+            if (missing > 0) pending.put(elementType, pending.get(elementType) + missing);
+        }
+        if (pending.size() > 0 && !scheduled) {
+            scheduled = true;
+            Looper.myQueue().addIdleHandler(this);
+        }
+    }
+
+    /**
+     * Counts a holder created by the adapter, so it is not created here too.
+     */
+    @UiThread
+    /* package */ void onHolderCreated(int elementType) {
+        created.put(elementType, created.get(elementType) + 1);
+        int count = pending.get(elementType);
+        if (count > 1) {
+            pending.put(elementType, count - 1);
+        } else if (count == 1) {
+            pending.delete(elementType);
+        }
+    }
+
+    /**
+     * Returns a warm holder for this type, if any.
+     */
+    @UiThread
+    @Nullable
+    /* package */ ElementPresenter.Holder take(int elementType) {
+        List<ElementPresenter.Holder> holders = warm.get(elementType);
+        if (holders == null || holders.isEmpty()) return null;
+        log("take: using a warm holder for type "+elementType);
+        return holders.remove(holders.size() - 1);
+    }
+
+    @Override
+    public boolean queueIdle() {
+        if (parent == null || pending.size() == 0) {
+            scheduled = false;
+            return false;
+        }
+        int elementType = pending.keyAt(0);
+        ElementPresenter presenter = adapter.getPresenter(elementType);
+        if (presenter != null) {
+            log("queueIdle: creating a holder for type "+elementType);
+            List<ElementPresenter.Holder> holders = warm.get(elementType);
+            if (holders == null) {
+                holders = new ArrayList<>();
+                warm.put(elementType, holders);
+            }
+            holders.add(presenter.instantiateHolder(parent, elementType));
+            onHolderCreated(elementType);
+        } else {
+            pending.delete(elementType);
+        }
+        scheduled = pending.size() > 0;
+        return scheduled;
+    }
+}
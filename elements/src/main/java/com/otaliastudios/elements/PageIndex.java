@@ -0,0 +1,143 @@
+package com.otaliastudios.elements;
+
+
+/**
+ * A prefix-sum index over page sizes, used by {@link Pager} to map absolute positions to pages.
+ * This is a Fenwick (binary indexed) tree, so that lookups and size updates are O(log pages)
+ * instead of walking every page.
+ *
+ * Page indexes are 0-based positions in the pager list, not page numbers. Sizes are the
+ * counts that were last notified to the adapter, which might differ from the actual page
+ * list size during a background operation.
+ */
+/* package */ class PageIndex {
+
+    private int[] tree; // 1-based Fenwick tree
+    private int[] sizes;
+    private int count;
+    private int total;
+
+    /* package */ PageIndex() {
+        tree = new int[17];
+        sizes = new int[16];
+    }
+
+    /* package */ int getCount() {
+        return count;
+    }
+
+    /* package */ int getTotal() {
+        return total;
+    }
+
+    /* package */ int getSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * Appends a new, empty page to the index.
+     */
+    /* package */ void append() {
+        if (count == sizes.length) {
+            int[] newSizes = new int[sizes.length * 2];
+            int[] newTree = new int[newSizes.length + 1];
+            System.arraycopy(sizes, 0, newSizes, 0, count);
+            System.arraycopy(tree, 0, newTree, 0, count + 1);
+            sizes = newSizes;
+            tree = newTree;
+        }
+        // The new node covers (i - lowbit(i), i]. All but the last one are existing pages.
+        int i = count + 1;
+        tree[i] = getSizeBefore(count) - getSizeBefore(i - (i & -i));
+        sizes[count] = 0;
+        count++;
+    }
+
+    /**
+     * Removes a page from the index. Following pages shift back by one.
+     * This rebuilds the tree in linear time.
+     * @param index page index
+     */
+    /* package */ void remove(int index) {
+        total -= sizes[index];
+        System.arraycopy(sizes, index + 1, sizes, index, count - index - 1);
+        count--;
+        rebuild();
+    }
+
+    /**
+     * Adds a new, empty page before all others. Existing pages shift forward by one.
+     * This rebuilds the tree in linear time.
+     */
+    /* package */ void prepend() {
+        insert(0);
+    }
+
+    /**
+     * Adds a new, empty page at the given index. Following pages shift forward by one.
+     * This rebuilds the tree in linear time.
+     * @param index page index
+     */
+    /* package */ void insert(int index) {
+        append();
+        System.arraycopy(sizes, index, sizes, index + 1, count - index - 1);
+        sizes[index] = 0;
+        rebuild();
+    }
+
+    private void rebuild() {
+        for (int i = 1; i <= count; i++) {
+            tree[i] = sizes[i - 1];
+        }
+        for (int i = 1; i <= count; i++) {
+            int parent = i + (i & -i);
+            if (parent <= count) tree[parent] += tree[i];
+        }
+    }
+
+    /**
+     * Adds delta to the size of the given page.
+     * @param index page index
+     * @param delta size delta
+     */
+    /* package */ void update(int index, int delta) {
+        sizes[index] += delta;
+        total += delta;
+        for (int i = index + 1; i <= count; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Returns the sum of sizes of pages before the given index.
+     * @param index page index
+     * @return number of elements before
+     */
+    /* package */ int getSizeBefore(int index) {
+        int sum = 0;
+        for (int i = index; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the index of the page containing the given absolute position, or -1.
+     * Empty pages are never returned.
+     * @param position absolute position
+     * @return page index or -1
+     */
+    /* package */ int find(int position) {
+        if (position < 0 || position >= total) return -1;
+        int index = 0;
+        int remaining = position;
+        for (int step = Integer.highestOneBit(count); step > 0; step >>= 1) {
+            int next = index + step;
+            if (next <= count && tree[next] <= remaining) {
+                index = next;
+                remaining -= tree[next];
+            }
+        }
+        return index;
+    }
+}
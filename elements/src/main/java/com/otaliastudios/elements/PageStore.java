@@ -0,0 +1,284 @@
+package com.otaliastudios.elements;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file where {@link ElementAdapter} stores the first pages, as they are loaded, so that they
+ * can be displayed immediately the next time the app starts, before sources find them again.
+ * Pages are written through each source {@link ElementSerializer}, just like when saving state.
+ * Serializers run in the UI thread, and only marshalling and file access happen in the store
+ * thread. Sources using a {@link StaticSerializer} are not stored.
+ *
+ * The file is append-only: each write adds a record, and later records win. When the file grows
+ * too much with old records, it is rewritten. Files written by a different platform version are
+ * discarded, since they are not guaranteed to be readable.
+ *
+ * @see ElementAdapter#setPageStore(PageStore)
+ */
+public class PageStore {
+
+    private final static String TAG = PageStore.class.getSimpleName();
+    private final static boolean DEBUG = false;
+    private static void log(String what) {
+        if (DEBUG) Log.e(TAG, what);
+    }
+
+    private final static int MAGIC = 0x454C5053;
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_SIZE = 12;
+    private final static String UTF_8 = "UTF-8";
+    // Rewrite when the file is this many times bigger than the live records.
+    private final static int COMPACT_RATIO = 3;
+    private final static int COMPACT_MIN_SIZE = 64 * 1024;
+
+    private final File file;
+    private final int maxPages;
+    private final Executor executor;
+
+    private Map<String, byte[]> records; // Loaded lazily, in the store thread.
+    private long liveSize;
+
+    /**
+     * Creates a store for the given file, typically in {@code Context.getFilesDir()}.
+     * Each adapter should use a different file.
+     *
+     * @param file the file
+     * @param maxPages how many pages, starting from page 0, should be stored
+     */
+    public PageStore(@NonNull File file, int maxPages) {
+        this.file = file;
+        this.maxPages = maxPages;
+        this.executor = newSerialExecutor(TAG);
+    }
+
+    // A single background thread, that goes away when idle.
+    /* package */ static Executor newSerialExecutor(final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name);
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Removes all stored pages.
+     */
+    public void clear() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                records = new LinkedHashMap<>();
+                liveSize = 0;
+                if (file.exists() && !file.delete()) {
+                    log("clear: could not delete "+file);
+                }
+            }
+        });
+    }
+
+    /* package */ boolean isStored(int pageNumber) {
+        return pageNumber >= 0 && pageNumber < maxPages;
+    }
+
+    // Store operations must run here, one at a time.
+    /* package */ Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the stored records for this page, keyed by source.
+     * @param pageNumber the page number
+     * @return a map of records, possibly empty
+     */
+    @WorkerThread
+    @NonNull
+    /* package */ Map<String, byte[]> read(int pageNumber) {
+        ensureLoaded();
+        String prefix = pageNumber + ":";
+        Map<String, byte[]> result = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                result.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Appends the records for this page, keyed by source.
+     * @param pageNumber the page number
+     * @param pageRecords the records
+     */
+    @WorkerThread
+    /* package */ void write(int pageNumber, @NonNull Map<String, byte[]> pageRecords) {
+        ensureLoaded();
+        boolean fresh = !file.exists() || file.length() == 0;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            if (fresh) writeHeader(out);
+            for (Map.Entry<String, byte[]> entry : pageRecords.entrySet()) {
+                String key = pageNumber + ":" + entry.getKey();
+                writeRecord(out, key, entry.getValue());
+                byte[] previous = records.put(key, entry.getValue());
+                if (previous != null) liveSize -= previous.length;
+                liveSize += entry.getValue().length;
+            }
+        } catch (IOException e) {
+            log("write: failed: "+e);
+        } finally {
+            close(out);
+        }
+        if (file.length() > COMPACT_MIN_SIZE && file.length() > COMPACT_RATIO * liveSize) {
+            compact();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (records != null) return;
+        records = new LinkedHashMap<>();
+        liveSize = 0;
+        if (!file.exists()) return;
+        DataInputStream in = null;
+        boolean valid = true;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readInt() != Build.VERSION.SDK_INT) {
+                log("load: discarding file from another version.");
+                records.clear();
+                valid = false;
+            } else {
+                long length = file.length();
+                long position = HEADER_SIZE;
+                while (position < length) {
+                    byte[] key = readBytes(in, length - position - 4);
+                    position += 4 + key.length;
+                    byte[] value = readBytes(in, length - position - 4);
+                    position += 4 + value.length;
+                    byte[] previous = records.put(new String(key, UTF_8), value);
+                    if (previous != null) liveSize -= previous.length;
+                    liveSize += value.length;
+                }
+            }
+        } catch (IOException e) {
+            // Truncated by a crash while writing. Keep what we have.
+            log("load: file is truncated or corrupted: "+e);
+            valid = false;
+        } finally {
+            close(in);
+        }
+        if (!valid) compact();
+    }
+
+    // Reads a length and that many bytes. An invalid length is treated like a truncation,
+    // so that a corrupted file can't make us allocate a huge or negative array.
+    private static byte[] readBytes(DataInputStream in, long remaining) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > remaining) throw new IOException("Invalid record length: "+size);
+        byte[] bytes = new byte[size];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // Rewrites the file with live records only, then swaps it in.
+    private void compact() {
+        log("compact: rewriting "+records.size()+" records.");
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean success = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            writeHeader(out);
+            for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            success = true;
+        } catch (IOException e) {
+            log("compact: failed: "+e);
+        } finally {
+            close(out);
+        }
+        if (!success || !temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(Build.VERSION.SDK_INT);
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignore) {}
+    }
+
+    /* package */ static byte[] marshall(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /* package */ static Bundle unmarshall(byte[] bytes, ClassLoader classLoader) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(classLoader);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -4,23 +4,28 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.UiThread;
 import android.support.annotation.WorkerThread;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.util.ListUpdateCallback;
 import android.util.Log;
-import android.util.Pair;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
+import bolts.CancellationToken;
+import bolts.CancellationTokenSource;
 import bolts.Continuation;
 import bolts.Task;
 
 
 /**
  * Base class for managing pages.
- * TODO option to remove a page.
  */
 public class Pager {
 
@@ -31,9 +36,10 @@ public class Pager {
     }
 
     private List<Page> pages = new ArrayList<>();
+    private PageIndex index = new PageIndex();
+    private int firstPageNumber;
     private Page currentPage;
     private ElementAdapter adapter;
-    private int countCache = -1;
 
     /* package */ Pager(ElementAdapter adapter) {
         this.adapter = adapter;
@@ -49,108 +55,380 @@ public class Pager {
     }
 
     /* package */ Page getPageForPosition(int position) {
-        log("getPageForPosition: "+position);
-        for (Page page : pages) {
-            log("getPageForPosition: found page at "+page.getPageNumber() + " with count "+page.getElementsCount()+" and elements before "+page.elementsBefore);
-            if (position >= page.elementsBefore &&
-                    position < page.elementsBefore + page.getElementsCount()) {
-                return page;
-            }
-        }
-        log("getPageForPosition: returning null");
-        return null;
+        int number = index.find(position);
+        log("getPageForPosition: "+position+" found page "+number);
+        return number == -1 ? null : pages.get(number);
     }
 
+    /**
+     * Opens the given page. Pages are contiguous, but they do not need to start from 0:
+     * the first page to be opened can be any, and pages can then be opened before or after
+     * the current range. Opening a page that is not contiguous to the current range
+     * removes all pages and starts over.
+     *
+     * Page numbers never change. A page can cover a range of numbers, after pages that followed
+     * it were merged into it or removed, so pages are not at {@code number - firstPageNumber}
+     * in the list. Callers should not open numbers that are covered by another page.
+     */
     @UiThread
     /* package */ Page openPage(int number, boolean clearContent) {
         log("openPage: called for position "+number+" clearing "+clearContent);
-        int objectsBefore = 0;
-        for (int i = 0; i < number; i++) {
-            objectsBefore += pages.get(i).getElementsCount();
+        if (pages.isEmpty() || number < firstPageNumber - 1 || number > getLastPageNumber() + 1) {
+            resetPages(number);
         }
-        if (number >= pages.size()) {
+        int position = number > getLastPageNumber() ? pages.size()
+                : number < firstPageNumber ? -1 : indexOfPage(number);
+        if (position == pages.size()) {
             // Need to create a new one.
-            currentPage = new Page(number, objectsBefore);
-            pages.add(number, currentPage);
+            currentPage = new Page(number);
+            pages.add(currentPage);
+            index.append();
+        } else if (position == -1) {
+            // Need to create a new one, before the others.
+            currentPage = new Page(number);
+            pages.add(0, currentPage);
+            index.prepend();
+            firstPageNumber = number;
         } else if (clearContent) {
             // We want an already present, but with cleared content.
-            clearPage(number);
-            currentPage = new Page(number, objectsBefore);
-            pages.set(number, currentPage);
+            Page previous = pages.get(position);
+            previous.clear();
+            previous.detach();
+            currentPage = new Page(number);
+            currentPage.lastNumber = previous.lastNumber;
+            pages.set(position, currentPage);
         } else {
             // We just want the current page. it'll be erased as soon as stuff comes.
-            currentPage = pages.get(number);
+            currentPage = pages.get(position);
         }
         return currentPage;
     }
 
+    /**
+     * Appends pages that have the given number of slots, as if they were evicted, until
+     * the given total size is reached. Slots are laid out as unloaded elements of the given
+     * source, and pages are found when needed, like evicted pages. Notifies the adapter once.
+     *
+     * @param sourceId the source that declared the size
+     * @param size the total size, including pages that are already open
+     * @param pageSize the size of each page
+     */
+    @UiThread
+    /* package */ void openSlotPages(int sourceId, int size, int pageSize) {
+        int end = (size + pageSize - 1) / pageSize;
+        // Pages that are already open are filled if empty, e.g. they were just cleared.
+        for (int i = 1; i < pages.size() && pages.get(i).number < end; i++) {
+            Page page = pages.get(i);
+            if (page.getElementsCount() > 0 || page.isLoading() || page.isMerged()) continue;
+            page.setSlots(sourceId, Math.min(pageSize, size - page.number * pageSize));
+            page.evicted = true;
+            page.notifyPageItemRangeInserted(0, page.slots);
+        }
+        int positionStart = index.getTotal();
+        int count = 0;
+        for (int number = getLastPageNumber() + 1; number < end; number++) {
+            Page page = new Page(number);
+            page.setSlots(sourceId, Math.min(pageSize, size - number * pageSize));
+            page.evicted = true;
+            pages.add(page);
+            index.append();
+            index.update(pages.size() - 1, page.slots);
+            count += page.slots;
+        }
+        log("openSlotPages: opened "+count+" slots up to page "+(end-1));
+        if (count > 0) adapter.notifyItemRangeInserted(positionStart, count);
+    }
+
+    // Removes all pages, so that the given number can be opened first.
+    @UiThread
+    private void resetPages(int firstNumber) {
+        log("resetPages: starting over from page "+firstNumber);
+        for (int i = pages.size() - 1; i >= 0; i--) {
+            Page page = pages.get(i);
+            page.clearElements();
+            page.detach();
+        }
+        pages.clear();
+        index = new PageIndex();
+        firstPageNumber = firstNumber;
+    }
 
     /* package */ int getNumberOfPages() {
         return pages.size();
     }
 
+    /* package */ int getFirstPageNumber() {
+        return firstPageNumber;
+    }
+
+    /* package */ int getLastPageNumber() {
+        return pages.isEmpty() ? firstPageNumber - 1 : pages.get(pages.size() - 1).lastNumber;
+    }
+
+    /**
+     * Returns the page that covers the given number. This is the page with this number,
+     * unless it was merged into a previous page or removed.
+     * Throws if the number is out of the opened range.
+     */
     /* package */ Page getPage(int number) {
-        return pages.get(number);
+        int position = indexOfPage(number);
+        if (position == -1) throw new IndexOutOfBoundsException("Page "+number+" is not open.");
+        return pages.get(position);
     }
 
-    /* package */ int getElementsCount() {
-        if (countCache != -1) {
-            return countCache;
-        } else {
-            int count = 0;
-            for (Page page : pages) {
-                count += page.getElementsCount();
+    /* package */ List<Page> getPages() {
+        return Collections.unmodifiableList(pages);
+    }
+
+    // Binary search for the position of the page that covers this number, or -1.
+    private int indexOfPage(int number) {
+        int low = 0;
+        int high = pages.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Page page = pages.get(middle);
+            if (number < page.number) {
+                high = middle - 1;
+            } else if (number > page.lastNumber) {
+                low = middle + 1;
+            } else {
+                return middle;
             }
-            countCache = count;
-            return count;
         }
+        return -1;
     }
 
-    // Called by pages to update the count cache.
-    private void updateCountCache(int pageNumber, int delta) {
-        if (countCache != -1) {
-            countCache += delta;
-            log("updateCountCache: to "+countCache);
-        } else {
-            // Makes no sense to update an invalid count cache. Recompute.
-            getElementsCount();
-            log("updateCountCache: recounted to "+countCache);
-        }
+    /* package */ int getElementsCount() {
+        return index.getTotal();
+    }
 
-        // Update elementsBefore of subsequent pages.
-        int pageCount = getNumberOfPages();
-        if (pageNumber == pageCount - 1) return;
-        for (int i = pageNumber + 1; i < pageCount; i++) {
-            getPage(i).elementsBefore += delta;
-        }
+    // Called by pages to update the index, once the adapter is notified.
+    private void updatePageIndex(Page page, int delta) {
+        index.update(indexOfPage(page.number), delta);
+        log("updatePageIndex: page "+page.number+" changed by "+delta+", total is "+index.getTotal());
     }
 
 
     @UiThread
     /* package */ void clearPage(int number) {
-        if (number < pages.size()) {
-            pages.get(number).clear();
-        }
+        int position = indexOfPage(number);
+        if (position != -1) pages.get(position).clear();
     }
 
+    // Clears the pages whose number is in the given range.
     @UiThread
     /* package */ void clearPages(int fromNumber, int toNumber) {
-        for (int i = fromNumber; i < toNumber; i++) {
-            clearPage(i);
+        for (Page page : new ArrayList<>(pages)) {
+            if (page.number >= fromNumber && page.number < toNumber) page.clear();
+        }
+    }
+
+    // Gives the numbers covered by this page back to new, empty pages, so they can be found again.
+    @UiThread
+    private void splitPage(Page page) {
+        int position = indexOfPage(page.number);
+        for (int number = page.number + 1; number <= page.lastNumber; number++) {
+            position++;
+            pages.add(position, new Page(number));
+            index.insert(position);
         }
+        page.lastNumber = page.number;
+        page.merged = false;
+    }
+
+    /**
+     * Removes a page and its elements. Other pages keep their numbers: the number of a page in
+     * the middle is taken over by the previous page, and won't be found again. Pages that are
+     * loading can not be removed, nor can the only page.
+     * If this was the current page, the previous page becomes current.
+     *
+     * @param number the page number
+     * @return the removed page
+     */
+    @UiThread
+    /* package */ Page removePage(int number) {
+        Page page = getPage(number);
+        if (page.isLoading()) throw new IllegalStateException("Can not remove a page while it is loading.");
+        if (pages.size() == 1) throw new IllegalStateException("Can not remove the only page.");
+        log("removePage: removing page "+page.number);
+        int position = indexOfPage(page.number);
+        page.clearElements();
+        page.detach();
+        pages.remove(position);
+        index.remove(position);
+        if (position == 0) {
+            firstPageNumber = pages.get(0).number;
+        } else if (position < pages.size()) {
+            pages.get(position - 1).lastNumber = page.lastNumber;
+        }
+        if (currentPage == page) {
+            currentPage = pages.get(Math.max(0, position - 1));
+        }
+        return page;
+    }
+
+    /**
+     * Merges each page into the previous one, as long as the two together have no more
+     * than maxElements elements. Pages that are loading or evicted are left alone.
+     * Elements keep their absolute position, so the adapter is not notified.
+     * Page numbers do not change: merged pages cover the numbers of the pages they absorbed,
+     * and can not be found again.
+     *
+     * @param maxElements max elements of a compacted page
+     * @return the pages that were merged into others, and removed
+     */
+    @UiThread
+    /* package */ List<Page> compactPages(int maxElements) {
+        List<Page> removed = new ArrayList<>();
+        if (pages.size() < 2) return removed;
+        List<Page> compacted = new ArrayList<>(pages.size());
+        PageIndex compactedIndex = new PageIndex();
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            int size = index.getSize(i);
+            Page previous = compacted.isEmpty() ? null : compacted.get(compacted.size() - 1);
+            int last = compacted.size() - 1;
+            if (previous != null && previous.canAbsorb(page)
+                    && compactedIndex.getSize(last) + size <= maxElements) {
+                log("compactPages: merging page "+page.number+" into "+previous.number);
+                previous.absorb(page);
+                page.detach();
+                compactedIndex.update(last, size);
+                if (currentPage == page) currentPage = previous;
+                removed.add(page);
+            } else {
+                compacted.add(page);
+                compactedIndex.append();
+                compactedIndex.update(compacted.size() - 1, size);
+            }
+        }
+        pages = compacted;
+        index = compactedIndex;
+        return removed;
     }
 
     /* package */ void saveState(Bundle outState) {
         outState.putInt("numberOfPages", pages.size());
+        outState.putInt("firstPageNumber", firstPageNumber);
         outState.putInt("currentPageNumber", currentPage.getPageNumber());
+        ArrayList<Integer> evicted = new ArrayList<>();
+        for (Page page : pages) {
+            if (page.isEvicted()) evicted.add(page.getPageNumber());
+        }
+        outState.putIntegerArrayList("evictedPages", evicted);
+        // Slots are saved as they are, so that the list keeps its size.
+        int[] slots = new int[pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            slots[i] = page.slots;
+            if (page.slots == 0) continue;
+            outState.putIntArray("slotSources:"+i, page.slotSources);
+            outState.putIntArray("slotCounts:"+i, page.slotCounts);
+        }
+        outState.putIntArray("slots", slots);
+        // Ranges of merged and removed pages.
+        int[] lastNumbers = new int[pages.size()];
+        boolean[] merged = new boolean[pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            lastNumbers[i] = pages.get(i).lastNumber;
+            merged[i] = pages.get(i).merged;
+        }
+        outState.putIntArray("lastPageNumbers", lastNumbers);
+        outState.putBooleanArray("mergedPages", merged);
     }
 
     /* package */ void restoreState(Bundle savedInstanceState) {
         int numberOfPages = savedInstanceState.getInt("numberOfPages");
         int currentPageNumber = savedInstanceState.getInt("currentPageNumber");
+        int firstNumber = savedInstanceState.getInt("firstPageNumber");
+        int[] lastNumbers = savedInstanceState.getIntArray("lastPageNumbers");
+        boolean[] merged = savedInstanceState.getBooleanArray("mergedPages");
+        int number = firstNumber;
         for (int i = 0; i < numberOfPages; i++) {
-            Page page = openPage(i, false);
-            if (i == currentPageNumber) currentPage = page;
+            Page page = openPage(number, false);
+            if (lastNumbers != null && merged != null) {
+                page.lastNumber = lastNumbers[i];
+                page.merged = merged[i];
+            }
+            if (currentPageNumber >= page.number && currentPageNumber <= page.lastNumber) currentPage = page;
+            number = page.lastNumber + 1;
+        }
+        // Evicted pages were saved empty. Flag them so they are found again when needed.
+        ArrayList<Integer> evicted = savedInstanceState.getIntegerArrayList("evictedPages");
+        if (evicted != null) {
+            for (int number : evicted) {
+                int position = indexOfPage(number);
+                if (position != -1) pages.get(position).evicted = true;
+            }
+        }
+        int[] slots = savedInstanceState.getIntArray("slots");
+        if (slots != null) {
+            for (int i = 0; i < slots.length && i < pages.size(); i++) {
+                if (slots[i] == 0) continue;
+                int[] slotSources = savedInstanceState.getIntArray("slotSources:"+i);
+                int[] slotCounts = savedInstanceState.getIntArray("slotCounts:"+i);
+                if (slotSources == null || slotCounts == null) continue;
+                Page page = pages.get(i);
+                page.slots = slots[i];
+                page.slotSources = slotSources;
+                page.slotCounts = slotCounts;
+                page.notifyPageItemRangeInserted(0, slots[i]);
+            }
+        }
+    }
+
+    /**
+     * An immutable version of a page contents, that can be read from any thread without locks.
+     * Elements are only changed by the UI thread: a snapshot is taken lazily, the first time
+     * it is asked for after a change, and shared by all readers until the next change.
+     */
+    /* package */ static class Snapshot {
+        private final int version;
+        private final List<Element> elements;
+
+        private Snapshot(int version, List<Element> elements) {
+            this.version = version;
+            this.elements = Collections.unmodifiableList(elements);
+        }
+
+        /* package */ int getVersion() {
+            return version;
+        }
+
+        /* package */ int getElementsCount() {
+            return elements.size();
+        }
+
+        /* package */ Element getElement(int position) {
+            return elements.get(position);
+        }
+
+        /* package */ List<Element> getElements() {
+            return elements;
+        }
+    }
+
+    // Result of a single ordering pass, built in a background thread.
+    private static class Merge {
+        private int version;
+        private List<Element> elements;
+        private List<Element> placed;
+        private List<int[]> ranges = new ArrayList<>();
+
+        // Appends up to count elements that were not placed yet, coalescing ranges.
+        private void place(List<Element> newElements, int count) {
+            count = Math.min(count, newElements.size() - placed.size());
+            if (count <= 0) return;
+            int position = elements.size();
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (last != null && last[0] + last[1] == position) {
+                last[1] += count;
+            } else {
+                ranges.add(new int[]{position, count});
+            }
+            List<Element> range = newElements.subList(placed.size(), placed.size() + count);
+            elements.addAll(range);
+            placed.addAll(range);
         }
     }
 
@@ -158,24 +436,59 @@ public class Pager {
     // TODO implement an isEditable boolean, so some method throw when !isEditable
     public class Page {
 
-        private int number;
-        private int elementsBefore;
+        private final int number;
+        private int lastNumber; // Numbers up to this one belong to this page, see openPage().
+        private boolean merged; // Has elements of other pages, so it can't be found again.
         private List<Element> elements;
         private final Object mutex = new Object();
+        private boolean evicted;
+        private boolean restored;
+        private boolean detached; // Removed from the pager, should not notify.
+        private CancellationTokenSource loadToken; // Token of the load in flight, if any
+        private CancellationToken loadTokenIssued; // What we gave to that load
+
+        // Positions that were notified with no element, in known size mode or after eviction.
+        // Slots are stored as runs of the same source, each bound to a single unloaded element,
+        // until the page is found. There are no elements until then.
+        private int slots;
+        private int[] slotSources; // Source of each run
+        private int[] slotCounts; // Size of each run
+        private Element[] slotElements;
+
+        // Elements of each source, in page order. Kept up to date on appends and on
+        // removals at the edges, rebuilt in a single pass after any other change.
+        private final SparseArray<List<Element>> sourceIndex = new SparseArray<>();
+        private boolean sourceIndexDirty;
 
+        // Identity positions of elements. Entries below positionIndexValid are trusted,
+        // the others are computed again, lazily, when looking for an element.
+        private final IdentityHashMap<Element, Integer> positionIndex = new IdentityHashMap<>();
+        private int positionIndexValid;
 
-        private Page(int number, int elementsBefore) {
+        // Incremented each time the adapter is notified of a change. Elements are only
+        // changed from the UI thread, with the mutex held, so that other threads can take
+        // consistent snapshots. Binds, in the UI thread, read the list with no locks.
+        private volatile int version;
+        private volatile Snapshot snapshot;
+
+
+        private Page(int number) {
             this.number = number;
-            this.elementsBefore = elementsBefore;
+            this.lastNumber = number;
             this.elements = new ArrayList<>();
         }
 
+        // Number of elements in previous pages, as known by the adapter.
+        private int getElementsBefore() {
+            return index.getSizeBefore(indexOfPage(number));
+        }
+
         /**
          * Returns the current count of objects in this page.
          * @return count
          */
         public int getElementsCount() {
-            return elements.size();
+            return elements.size() + slots;
         }
 
         /**
@@ -184,17 +497,60 @@ public class Pager {
          */
         @UiThread
         public Task<Void> loadNextPage() {
-            return adapter.loadSinglePage(number+1);
+            if (restored && lastNumber < getLastPageNumber()) {
+                // We were found again after being evicted, so any pagination
+                // element is stale: the next page is already there.
+                return Task.forResult(null);
+            }
+            // Pages merged into this one, or removed after it, are not loaded again.
+            return adapter.loadSinglePage(lastNumber+1);
+        }
+
+        /**
+         * Asks the adapter to open and load the previous page. Elements are inserted before
+         * the elements of this page: when using a LinearLayoutManager, visible items are kept
+         * in place. Does nothing if this is page 0.
+         * @return a task that is completed once the operation ends.
+         */
+        @UiThread
+        public Task<Void> loadPreviousPage() {
+            if (number == 0 || (restored && number > firstPageNumber)) {
+                // No previous page, or it is already there.
+                return Task.forResult(null);
+            }
+            return adapter.loadSinglePage(number-1);
         }
 
         /**
-         * Returns this page number.
+         * Asks the adapter to load the next page on behalf of the given pagination element,
+         * that is removed once done. Unlike {@link #loadNextPage()}, this is posted, so it can be
+         * called while binding, and requests for the same page are coalesced.
+         * @param paginationElement the pagination element
+         */
+        @UiThread
+        /* package */ void loadNextPage(Element paginationElement) {
+            adapter.loadNextPage(this, paginationElement);
+        }
+
+        /**
+         * Returns this page number. This never changes, even when other pages are removed
+         * or merged into this one.
          * @return the number
          */
         public int getPageNumber() {
             return number;
         }
 
+        /**
+         * True if other pages were merged into this one by {@link ElementAdapter#compactPages(int)}.
+         * Merged pages hold elements that sources found for different page numbers, so they are
+         * never evicted nor found again, unless a load clears them.
+         * @return true if merged
+         */
+        public boolean isMerged() {
+            return merged;
+        }
+
         /**
          * True if this is the current page, that is, the last to be opened.
          * @return tue if current page
@@ -204,17 +560,179 @@ public class Pager {
         }
 
         /**
-         * Clear this page from any object currently present.
+         * Clear this page from any object currently present. If other pages were merged
+         * into this one, they are opened again, empty.
          */
         @UiThread
         public void clear() {
+            clearElements();
+            split();
+        }
+
+        /**
+         * Opens again, empty, the pages that were merged into this one or removed after it.
+         * Elements are left here, so the caller should replace or clear them.
+         */
+        @UiThread
+        /* package */ void split() {
+            if (lastNumber > number && !detached) splitPage(this);
+        }
+
+        @UiThread
+        private void clearElements() {
             synchronized (mutex) {
-                int count = this.elements.size();
+                int count = this.elements.size() + this.slots;
+                this.slots = 0;
+                this.slotSources = null;
+                this.slotCounts = null;
+                this.slotElements = null;
                 this.elements.clear();
+                this.sourceIndex.clear();
+                this.sourceIndexDirty = false;
+                this.positionIndex.clear();
+                this.positionIndexValid = 0;
+                this.evicted = false;
                 notifyPageItemRangeRemoved(0, count);
             }
         }
 
+        /**
+         * True if this page elements were dropped because the page went out of the eviction
+         * window. Positions are still occupied by placeholders of type
+         * {@link ElementAdapter#TYPE_UNLOADED} until the page is found again.
+         *
+         * @see ElementAdapter#setPageEvictionWindow(int)
+         * @return true if evicted
+         */
+        public boolean isEvicted() {
+            return evicted;
+        }
+
+        /* package */ boolean isLoading() {
+            return loadToken != null;
+        }
+
+        /**
+         * Called when a load starts for this page. Any other load in flight is superseded
+         * and cancelled: its results will not be laid out.
+         * @param restoring whether we are restoring an evicted page
+         * @return a token for the new load
+         */
+        @UiThread
+        /* package */ CancellationToken onLoadStarted(boolean restoring) {
+            restored = restoring;
+            // The superseded load is over for us, even if its find never completes.
+            if (loadToken != null) loadToken.cancel();
+            loadToken = new CancellationTokenSource();
+            loadTokenIssued = loadToken.getToken();
+            return loadTokenIssued;
+        }
+
+        /**
+         * Called when a load for this page completes. Nothing happens if the load was
+         * superseded by another one, that is still in flight.
+         * @param token the token of the load
+         */
+        @UiThread
+        /* package */ void onLoadEnded(CancellationToken token) {
+            if (loadToken != null && loadTokenIssued == token) {
+                loadToken = null;
+                loadTokenIssued = null;
+            }
+        }
+
+        // Removed from the pager. Loads in flight are cancelled.
+        @UiThread
+        private void detach() {
+            detached = true;
+            if (loadToken != null) loadToken.cancel();
+        }
+
+        /**
+         * Replaces elements with slots of the same sources. This drops references to model
+         * data but keeps the page count, so positions stay stable. Slots are filled with
+         * unloaded placeholders when the page is found again.
+         */
+        @UiThread
+        /* package */ void evict() {
+            synchronized (mutex) {
+                int count = this.elements.size();
+                int runs = 0;
+                for (int i = 0; i < count; i++) {
+                    if (i == 0 || this.elements.get(i).sourceId != this.elements.get(i - 1).sourceId) runs++;
+                }
+                int[] sources = new int[runs];
+                int[] counts = new int[runs];
+                int run = -1;
+                for (int i = 0; i < count; i++) {
+                    int sourceId = this.elements.get(i).sourceId;
+                    if (run < 0 || sources[run] != sourceId) sources[++run] = sourceId;
+                    counts[run]++;
+                }
+                this.elements = new ArrayList<>();
+                this.slots = count;
+                this.slotSources = sources;
+                this.slotCounts = counts;
+                this.slotElements = null;
+                this.sourceIndex.clear();
+                this.sourceIndexDirty = false;
+                this.positionIndex.clear();
+                this.positionIndexValid = 0;
+                this.evicted = true;
+                if (count > 0) {
+                    notifyPageItemRangeChanged(0, count);
+                }
+            }
+        }
+
+        /**
+         * Called when an evicted page has been found again. Removes the unloaded placeholders
+         * that were not replaced by sources, e.g. because their find task failed.
+         */
+        @UiThread
+        /* package */ void onEvictionRestored() {
+            synchronized (mutex) {
+                for (int end = this.elements.size(); end > 0; end--) {
+                    if (!this.elements.get(end - 1).isUnloaded()) continue;
+                    int start = end - 1;
+                    while (start > 0 && this.elements.get(start - 1).isUnloaded()) start--;
+                    removeRange(start, end);
+                    this.sourceIndexDirty = true;
+                    notifyPageItemRangeRemoved(start, end - start);
+                    end = start + 1;
+                }
+                this.evicted = false;
+            }
+        }
+
+        // True if the given page, which follows this one, can be merged into it.
+        private boolean canAbsorb(Page page) {
+            return !isLoading() && !page.isLoading() && !evicted && !page.evicted;
+        }
+
+        /**
+         * Appends the elements of the following page, that is going to be dropped.
+         * Absolute positions do not change, so there is nothing to notify.
+         */
+        @UiThread
+        private void absorb(Page page) {
+            synchronized (mutex) {
+                synchronized (page.mutex) {
+                    int position = this.elements.size();
+                    this.elements.addAll(page.elements);
+                    onIndexInserted(position, page.elements.size());
+                    page.elements = new ArrayList<>();
+                    page.sourceIndex.clear();
+                    page.positionIndex.clear();
+                    page.positionIndexValid = 0;
+                    page.version++;
+                    version++;
+                    lastNumber = page.lastNumber;
+                    merged = true;
+                }
+            }
+        }
+
         /**
          * Insert an object at the specified position in this page.
          * An element will be created.
@@ -226,9 +744,12 @@ public class Pager {
         @UiThread
         public Element insertElement(int position, ElementSource source, Object data) {
             synchronized (mutex) {
+                fillSlots();
                 if (position >= 0 && position <= this.elements.size()) {
                     Element element = adapter.createElement(source, data);
                     this.elements.add(position, element);
+                    onIndexInserted(position, 1);
+                    invalidatePositions(position);
                     notifyPageItemInserted(position);
                     return element;
                 }
@@ -244,8 +765,11 @@ public class Pager {
         @UiThread
         public void insertElement(int position, Element element) {
             synchronized (mutex) {
+                fillSlots();
                 if (position >= 0 && position <= this.elements.size()) {
                     this.elements.add(position, element);
+                    onIndexInserted(position, 1);
+                    invalidatePositions(position);
                     notifyPageItemInserted(position);
                 }
             }
@@ -253,9 +777,11 @@ public class Pager {
 
         @UiThread
         private void notifyPageItemInserted(int position) {
-            updateCountCache(number, 1);
+            version++;
+            if (detached) return;
+            updatePageIndex(this, 1);
             log("notifyPageItemInserted: pos="+position);
-            adapter.notifyItemInserted(elementsBefore + position);
+            adapter.notifyItemInserted(getElementsBefore() + position);
         }
 
         /**
@@ -265,8 +791,12 @@ public class Pager {
         @UiThread
         public void removeElement(int position) {
             synchronized (mutex) {
+                fillSlots();
                 if (position >= 0 && position < this.elements.size()) {
-                    this.elements.remove(position);
+                    Element removed = this.elements.remove(position);
+                    onIndexRemoved(removed);
+                    positionIndex.remove(removed);
+                    invalidatePositions(position);
                     notifyPageItemRemoved(position);
                 }
             }
@@ -278,17 +808,22 @@ public class Pager {
          */
         @UiThread
         public void removeElement(Element element) {
-            int position = this.elements.indexOf(element);
-            if (position != -1) {
-                removeElement(position);
+            synchronized (mutex) {
+                fillSlots();
+                int position = positionOf(element);
+                if (position != -1) {
+                    removeElement(position);
+                }
             }
         }
 
         @UiThread
         private void notifyPageItemRemoved(int position) {
-            updateCountCache(number, -1);
+            version++;
+            if (detached) return;
+            updatePageIndex(this, -1);
             log("notifyPageItemRemoved: pos="+position);
-            adapter.notifyItemRemoved(elementsBefore + position);
+            adapter.notifyItemRemoved(getElementsBefore() + position);
         }
 
         /**
@@ -299,18 +834,34 @@ public class Pager {
         @UiThread
         public void replaceElement(Element item, Element withItem) {
             synchronized (mutex) {
-                int position = this.elements.indexOf(item);
+                fillSlots();
+                int position = positionOf(item);
                 if (position != -1) {
                     this.elements.set(position, withItem);
+                    if (item != withItem) {
+                        sourceIndexDirty = true;
+                        positionIndex.remove(item);
+                        positionIndex.put(withItem, position);
+                    }
                     notifyPageItemChanged(position);
                 }
             }
         }
 
+        @UiThread
+        private void notifyPageItemMoved(int fromPosition, int toPosition) {
+            version++;
+            if (detached) return;
+            log("notifyPageItemMoved: from="+fromPosition+" to="+toPosition);
+            adapter.notifyItemMoved(getElementsBefore() + fromPosition, getElementsBefore() + toPosition);
+        }
+
         @UiThread
         private void notifyPageItemChanged(int position) {
+            version++;
+            if (detached) return;
             log("notifyPageItemChanged: pos="+position);
-            adapter.notifyItemChanged(elementsBefore + position);
+            adapter.notifyItemChanged(getElementsBefore() + position);
         }
 
         /**
@@ -322,14 +873,13 @@ public class Pager {
         @UiThread
         public void insertElements(int position, Collection<Element> elements) {
             synchronized (mutex) {
+                fillSlots();
                 if (position >= 0 && position <= this.elements.size()) {
                     int count = elements.size();
-                    int offset = 0;
-                    for (Element e : elements) {
-                        this.elements.add(position + offset, e);
-                        offset += 1;
-                    }
+                    this.elements.addAll(position, elements);
                     if (count > 0) {
+                        onIndexInserted(position, count);
+                        invalidatePositions(position);
                         notifyPageItemRangeInserted(position, count);
                     }
                 }
@@ -338,9 +888,11 @@ public class Pager {
 
         @UiThread
         private void notifyPageItemRangeInserted(int positionStart, int count) {
-            updateCountCache(number, count);
+            version++;
+            if (detached) return;
+            updatePageIndex(this, count);
             log("notifyPageItemRangeInserted: pos="+positionStart+" count="+count);
-            adapter.notifyItemRangeInserted(elementsBefore + positionStart, count);
+            adapter.notifyItemRangeInserted(getElementsBefore() + positionStart, count);
         }
 
         /**
@@ -353,11 +905,17 @@ public class Pager {
         @UiThread
         public void replaceElements(int position, Element... elements) {
             synchronized (mutex) {
+                fillSlots();
                 if (position >= 0 && position + elements.length <= this.elements.size()) {
                     int count = elements.length;
                     int offset = 0;
                     for (Element e : elements) {
-                        this.elements.set(position + offset, e);
+                        Element old = this.elements.set(position + offset, e);
+                        if (old != e) {
+                            sourceIndexDirty = true;
+                            positionIndex.remove(old);
+                            positionIndex.put(e, position + offset);
+                        }
                         offset += 1;
                     }
                     if (count > 0) {
@@ -369,8 +927,10 @@ public class Pager {
 
         @UiThread
         private void notifyPageItemRangeChanged(int positionStart, int count) {
+            version++;
+            if (detached) return;
             log("notifyPageItemRangeChanged: pos="+positionStart+" count="+count);
-            adapter.notifyItemRangeChanged(elementsBefore + positionStart, count);
+            adapter.notifyItemRangeChanged(getElementsBefore() + positionStart, count);
         }
 
         /**
@@ -381,13 +941,11 @@ public class Pager {
         @UiThread
         public void removeElements(int position, int count) {
             synchronized (mutex) {
-                if (position >= 0 && position + count < this.elements.size()) {
-                    int c = 0;
-                    for (int i = position; i < position + count; i++) {
-                        this.elements.remove(i);
-                        c += 1;
-                    }
-                    if (c > 0) {
+                fillSlots();
+                if (position >= 0 && position + count <= this.elements.size()) {
+                    if (count > 0) {
+                        removeRange(position, position + count);
+                        sourceIndexDirty = true;
                         notifyPageItemRangeRemoved(position, count);
                     }
                 }
@@ -396,9 +954,11 @@ public class Pager {
 
         @UiThread
         private void notifyPageItemRangeRemoved(int positionStart, int count) {
-            updateCountCache(number, -count);
+            version++;
+            if (detached) return;
+            updatePageIndex(this, -count);
             log("notifyPageItemRangeRemoved: pos="+positionStart+" count="+count);
-            adapter.notifyItemRangeRemoved(elementsBefore + positionStart, count);
+            adapter.notifyItemRangeRemoved(getElementsBefore() + positionStart, count);
         }
 
         /**
@@ -411,26 +971,226 @@ public class Pager {
         }
 
         /* package */ Element getElement(int position) {
+            if (slots > 0) {
+                // Any slot of the same run will do.
+                if (position < 0 || position >= slots) throw new IndexOutOfBoundsException();
+                if (slotElements == null) slotElements = new Element[slotSources.length];
+                int run = 0;
+                while (position >= slotCounts[run]) position -= slotCounts[run++];
+                if (slotElements[run] == null) slotElements[run] = Element.unloaded(slotSources[run]);
+                return slotElements[run];
+            }
             return elements.get(position);
         }
 
 
         /* package */ Element getElementForAbsolutePosition(int position) {
-            return getElement(position-elementsBefore);
+            return getElement(position-getElementsBefore());
+        }
+
+        @UiThread
+        /* package */ List<Element> getElements() {
+            fillSlots();
+            return elements;
+        }
+
+        // Changes each time the elements of this page change.
+        /* package */ int getVersion() {
+            return version;
+        }
+
+        /* package */ boolean hasSlots() {
+            return slots > 0;
+        }
+
+        // Lays out slots of a single source. Does not notify.
+        private void setSlots(int sourceId, int count) {
+            slots = count;
+            slotSources = new int[]{ sourceId };
+            slotCounts = new int[]{ count };
+            slotElements = null;
+        }
+
+        /**
+         * Replaces slots with actual unloaded elements, so that this page can be found as if it
+         * was evicted. Nothing changes for the adapter.
+         */
+        @UiThread
+        /* package */ void fillSlots() {
+            if (slots == 0) return;
+            synchronized (mutex) {
+                log("fillSlots: page "+number+" filling "+slots+" slots.");
+                for (int run = 0; run < slotSources.length; run++) {
+                    for (int i = 0; i < slotCounts[run]; i++) {
+                        elements.add(Element.unloaded(slotSources[run]));
+                    }
+                }
+                slots = 0;
+                slotSources = null;
+                slotCounts = null;
+                slotElements = null;
+                sourceIndexDirty = true;
+                positionIndexValid = 0;
+                version++;
+            }
+        }
+
+        // Must be called with the mutex held.
+        private void invalidatePositions(int from) {
+            if (from < positionIndexValid) positionIndexValid = from;
+        }
+
+        // Must be called with the mutex held. Amortized constant time for lookups that
+        // move forward in the page, like removing or ordering elements in page order.
+        private int positionOf(Element element) {
+            Integer cached = positionIndex.get(element);
+            if (cached != null && cached < positionIndexValid && elements.get(cached) == element) {
+                return cached;
+            }
+            int size = elements.size();
+            while (positionIndexValid < size) {
+                Element candidate = elements.get(positionIndexValid);
+                positionIndex.put(candidate, positionIndexValid);
+                positionIndexValid++;
+                if (candidate == element) return positionIndexValid - 1;
+            }
+            return -1;
         }
 
-        /* package */ List<Element> getElements() { return elements; }
+        // Must be called with the mutex held. Does not notify nor touch the source index.
+        private void removeRange(int start, int end) {
+            List<Element> range = elements.subList(start, end);
+            for (Element element : range) {
+                positionIndex.remove(element);
+            }
+            range.clear();
+            invalidatePositions(start);
+        }
+
+        // Must be called with the mutex held.
+        private void onIndexInserted(int position, int count) {
+            if (sourceIndexDirty) return;
+            if (position + count != elements.size()) {
+                // Not an append. Rebuild later.
+                sourceIndexDirty = true;
+                return;
+            }
+            for (int i = position; i < position + count; i++) {
+                Element element = elements.get(i);
+                List<Element> list = sourceIndex.get(element.sourceId);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    sourceIndex.put(element.sourceId, list);
+                }
+                list.add(element);
+            }
+        }
+
+        // Must be called with the mutex held.
+        private void onIndexRemoved(Element element) {
+            if (sourceIndexDirty) return;
+            List<Element> list = sourceIndex.get(element.sourceId);
+            int last = list == null ? -1 : list.size() - 1;
+            if (last >= 0 && list.get(last) == element) {
+                list.remove(last);
+            } else if (last >= 0 && list.get(0) == element) {
+                list.remove(0);
+            } else {
+                sourceIndexDirty = true;
+            }
+        }
+
+        // Must be called with the mutex held.
+        @NonNull
+        private List<Element> getIndexedElements(int sourceId) {
+            if (sourceIndexDirty) {
+                sourceIndex.clear();
+                for (Element element : elements) {
+                    List<Element> list = sourceIndex.get(element.sourceId);
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        sourceIndex.put(element.sourceId, list);
+                    }
+                    list.add(element);
+                }
+                sourceIndexDirty = false;
+            }
+            List<Element> list = sourceIndex.get(sourceId);
+            return list == null ? Collections.<Element>emptyList() : list;
+        }
+
+        /**
+         * Removes all elements of the given source in a single pass, notifying coalesced ranges.
+         * @param sourceId the source id
+         */
+        @UiThread
+        /* package */ void removeElementsBySource(int sourceId) {
+            synchronized (mutex) {
+                fillSlots();
+                if (getIndexedElements(sourceId).isEmpty()) return;
+                for (int end = this.elements.size(); end > 0; end--) {
+                    if (this.elements.get(end - 1).sourceId != sourceId) continue;
+                    int start = end - 1;
+                    while (start > 0 && this.elements.get(start - 1).sourceId == sourceId) start--;
+                    removeRange(start, end);
+                    notifyPageItemRangeRemoved(start, end - start);
+                    end = start + 1;
+                }
+                // Other sources keep their relative order.
+                sourceIndex.remove(sourceId);
+            }
+        }
+
+        /**
+         * Returns an immutable snapshot of this page elements. This can be called from any
+         * thread, and is cheap as long as the page did not change since the last call.
+         * It is meant for worker threads that need the whole page: elements of some sources are
+         * read from the source index instead, see {@link #getElementsBySource(int)}.
+         * @return a snapshot
+         */
+        @NonNull
+        /* package */ Snapshot getSnapshot() {
+            Snapshot current = snapshot;
+            if (current != null && current.version == version) return current;
+            synchronized (mutex) {
+                current = snapshot;
+                if (current == null || current.version != version) {
+                    current = new Snapshot(version, new ArrayList<>(elements));
+                    snapshot = current;
+                }
+                return current;
+            }
+        }
 
+        @NonNull
         /* package */ List<Element> getElementsBySource(int sourceId) {
-            return getElementsBySource(Arrays.asList(sourceId));
+            synchronized (mutex) {
+                return new ArrayList<>(getIndexedElements(sourceId));
+            }
         }
 
         @NonNull
         /* package */ List<Element> getElementsBySource(Collection<Integer> sourceSet) {
             synchronized (mutex) {
+                // Quick path if a single source has elements, which is the most common case.
+                List<Element> single = null;
+                int nonEmpty = 0;
+                for (int sourceId : sourceSet) {
+                    List<Element> list = getIndexedElements(sourceId);
+                    if (!list.isEmpty()) {
+                        single = list;
+                        nonEmpty++;
+                    }
+                }
+                if (nonEmpty == 0) return new ArrayList<>();
+                if (nonEmpty == 1) return new ArrayList<>(single);
+
+                // Merge in page order.
+                SparseBooleanArray lookup = new SparseBooleanArray(sourceSet.size());
+                for (int sourceId : sourceSet) lookup.put(sourceId, true);
                 List<Element> elems = new ArrayList<>();
                 for (Element o : elements) {
-                    if (sourceSet.contains(o.sourceId)) {
+                    if (lookup.get(o.sourceId)) {
                         elems.add(o);
                     }
                 }
@@ -438,16 +1198,13 @@ public class Pager {
             }
         }
 
-        /* package */ List<Object> getDataBySource(int sourceId) {
-            return getDataBySource(Arrays.asList(sourceId));
-        }
-
         @NonNull
-        /* package */ List<Object> getDataBySource(Collection<Integer> sourceSet) {
+        /* package */ List<Object> getDataBySource(int sourceId) {
             synchronized (mutex) {
-                List<Object> data = new ArrayList<>();
-                for (Element o : elements) {
-                    if (sourceSet.contains(o.sourceId)) {
+                List<Element> list = getIndexedElements(sourceId);
+                List<Object> data = new ArrayList<>(list.size());
+                for (Element o : list) {
+                    if (!o.isUnloaded()) {
                         data.add(o.getData());
                     }
                 }
@@ -455,19 +1212,27 @@ public class Pager {
             }
         }
 
+        /**
+         * Lays out the new elements of a source, replacing the old ones. If the token is
+         * cancelled before the UI thread is reached, nothing is done.
+         * @param sourceId the source id
+         * @param newElements the new elements
+         * @param token a token for this operation, or null
+         * @return a task that is completed (or cancelled) once done
+         */
         @WorkerThread
-        /* package */ Task<Void> setElementsForSource(final int sourceId, final List<Element> newElements) {
+        /* package */ Task<Void> setElementsForSource(final int sourceId, final List<Element> newElements, final CancellationToken token) {
+            if (adapter.isDiffEnabled() && adapter.getDependencies(sourceId).isEmpty()) {
+                return setElementsForSourceWithDiff(sourceId, newElements, token);
+            }
             // Remove all other objects from the same source. This must happen in the UI thread.
             return Task.call(new Callable<Set<Integer>>() {
                 @Override
                 public Set<Integer> call() throws Exception {
 
                     // Remove all other objects from the same source. This must happen in UI.
-                    List<Element> oldData = getElementsBySource(sourceId);
-                    log("setElementsForSource: removing "+oldData.size()+" previous elements from same source");
-                    for (Element element : oldData) {
-                        removeElement(element);
-                    }
+                    log("setElementsForSource: removing previous elements from same source");
+                    removeElementsBySource(sourceId);
 
                     // Quick ending if we have no dependencies.
                     Set<Integer> dependencies = adapter.getDependencies(sourceId);
@@ -480,75 +1245,254 @@ public class Pager {
                     }
                     return dependencies;
                 }
-            }, Task.UI_THREAD_EXECUTOR).onSuccess(new Continuation<Set<Integer>, List<Pair<Integer, Integer>>>() {
+            }, Task.UI_THREAD_EXECUTOR, token).onSuccessTask(new Continuation<Set<Integer>, Task<Void>>() {
                 @Override
-                public List<Pair<Integer, Integer>> then(Task<Set<Integer>> task) throws Exception {
-                    if (task.getResult() == null) return null;
+                public Task<Void> then(Task<Set<Integer>> task) throws Exception {
+                    if (task.getResult() == null) return Task.forResult(null);
+                    return orderElementsForSource(sourceId, newElements, task.getResult(), token);
+                }
+            });
+        }
 
+        /**
+         * Orders the new elements of a source with respect to its dependencies, by building
+         * the merged page list in a single pass in a background thread. The merged list is then
+         * swapped in from the UI thread, unless the page has changed in the meanwhile: in that
+         * case, we just try again.
+         */
+        private Task<Void> orderElementsForSource(final int sourceId, final List<Element> newElements, final Set<Integer> dependencies, final CancellationToken token) {
+            return Task.call(new Callable<Merge>() {
+                @Override
+                public Merge call() throws Exception {
                     // This source has been found. The sources it depends on will be already here.
-                    final ElementSource source = adapter.getSource(sourceId);
-                    List<Element> dependenciesElements = getElementsBySource(task.getResult());
+                    Merge merge = new Merge();
+                    Snapshot snapshot = getSnapshot();
+                    List<Element> base = snapshot.getElements();
+                    merge.version = snapshot.getVersion();
+                    SparseBooleanArray lookup = new SparseBooleanArray(dependencies.size());
+                    for (int dependency : dependencies) lookup.put(dependency, true);
+                    List<Element> dependenciesElements = new ArrayList<>();
+                    for (Element element : base) {
+                        if (lookup.get(element.sourceId)) dependenciesElements.add(element);
+                    }
+
+                    ElementSource source = adapter.getSource(sourceId);
                     source.onPrepareOrder(Page.this, newElements, dependenciesElements);
-                    // ??? not sure it works. indexes are considered as if the adapter was already updated.
-                    // ^ It appears to be working.
-                    List<Pair<Integer, Integer>> rangeUpdates = new ArrayList<>();
-                    log("setElementsForSource: found "+newElements.size()+" elements.");
+                    log("setElementsForSource: ordering "+newElements.size()+" elements.");
+                    merge.elements = new ArrayList<>(base.size() + newElements.size());
+                    merge.placed = new ArrayList<>(newElements.size());
+                    int dependencyIndex = 0;
+                    for (Element element : base) {
+                        if (!lookup.get(element.sourceId)) {
+                            merge.elements.add(element);
+                            continue;
+                        }
+                        int before = 0;
+                        int after = 0;
+                        if (merge.placed.size() < newElements.size()) {
+                            Element dependencyElement = dependenciesElements.get(dependencyIndex);
+                            before = source.orderBefore(Page.this, dependencyIndex, dependencyElement);
+                            after = source.orderAfter(Page.this, dependencyIndex, dependencyElement);
+                        }
+                        dependencyIndex++;
+                        merge.place(newElements, before);
+                        merge.elements.add(element);
+                        merge.place(newElements, after);
+                    }
+                    return merge;
+                }
+            }, adapter.getOrderExecutor(this), token).onSuccessTask(new Continuation<Merge, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<Merge> task) throws Exception {
+                    Merge merge = task.getResult();
+                    synchronized (mutex) {
+                        if (merge.version != version) {
+                            log("setElementsForSource: page changed while ordering, trying again.");
+                            return orderElementsForSource(sourceId, newElements, dependencies, token);
+                        }
+                        log("setElementsForSource: committing "+merge.ranges.size()+" ranges.");
+                        if (merge.ranges.isEmpty()) return Task.forResult(null);
+                        elements = merge.elements;
+                        invalidatePositions(merge.ranges.get(0)[0]);
+                        if (!sourceIndexDirty) sourceIndex.put(sourceId, merge.placed);
+                        for (int[] range : merge.ranges) {
+                            notifyPageItemRangeInserted(range[0], range[1]);
+                        }
+                    }
+                    return Task.forResult(null);
+                }
+            }, Task.UI_THREAD_EXECUTOR, token);
+        }
+
+        /**
+         * Lays out a chunk of elements of a source, right after its last element on this page.
+         * This expects the source elements to be {@code previous}, that is, the chunks that were
+         * laid out before. If they are not, for instance for the first chunk of a reload,
+         * they are all replaced with {@code previous} followed by {@code chunk}, at the end.
+         *
+         * @param sourceId the source id
+         * @param previous the elements of this source that were laid out so far
+         * @param chunk the new elements
+         * @param token a token for this operation, or null
+         * @return a task that is completed (or cancelled) once done
+         */
+        /* package */ Task<Void> appendElementsForSource(final int sourceId, final List<Element> previous, final List<Element> chunk, CancellationToken token) {
+            return Task.call(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
                     synchronized (mutex) {
-                        int numInserted = 0;
-                        int numRemaining;
-                        for (int i = 0; i < dependenciesElements.size(); i++) {
-                            int before = source.orderBefore(Page.this, i, dependenciesElements.get(i));
-                            int after = source.orderAfter(Page.this, i, dependenciesElements.get(i));
-                            int pageIndex = elements.indexOf(dependenciesElements.get(i));
-
-                            // Now pageIndex is the index of the dependency object in the page.
-                            numRemaining = newElements.size() - numInserted;
-                            if (numRemaining == 0) break;
-                            before = Math.min(before, numRemaining);
-                            for (int j = 0; j < before; j++) {
-                                // LOG.now("elements: adding element at index "+pageIndex);
-                                elements.add(pageIndex, newElements.get(numInserted));
-                                pageIndex += 1;
-                                numInserted += 1;
-                            }
-                            if (before > 0) {
-                                rangeUpdates.add(new Pair<>(pageIndex - before, before));
-                            }
-
-                            // Now pageIndex is STILL the index of the dependency object in the page.
-                            numRemaining = newElements.size() - numInserted;
-                            if (numRemaining == 0) break;
-                            after = Math.min(after, numRemaining);
-                            pageIndex += 1; // To put after.
-                            for (int j = 0; j < after; j++) {
-                                // LOG.now("elements: adding element at index "+pageIndex);
-                                elements.add(pageIndex, newElements.get(numInserted));
-                                pageIndex += 1;
-                                numInserted += 1;
-                            }
-                            if (after > 0) {
-                                rangeUpdates.add(new Pair<>(pageIndex - after, after));
-                            }
+                        fillSlots();
+                        List<Element> current = getIndexedElements(sourceId);
+                        if (!isSameElements(current, previous)) {
+                            log("appendElementsForSource: replacing elements of source "+sourceId);
+                            removeElementsBySource(sourceId);
+                            List<Element> all = new ArrayList<>(previous.size() + chunk.size());
+                            all.addAll(previous);
+                            all.addAll(chunk);
+                            insertElements(elements.size(), all);
+                        } else {
+                            int position = current.isEmpty() ? elements.size()
+                                    : positionOf(current.get(current.size() - 1)) + 1;
+                            log("appendElementsForSource: appending "+chunk.size()+" elements at "+position);
+                            insertElements(position, chunk);
                         }
                     }
-                    log("setElementsForSource: returning updates with "+rangeUpdates.size()+" elements.");
-                    return rangeUpdates;
+                    return null;
                 }
-            }, Task.BACKGROUND_EXECUTOR).onSuccess(new Continuation<List<Pair<Integer,Integer>>, Void>() {
+            }, Task.UI_THREAD_EXECUTOR, token);
+        }
+
+        @WorkerThread
+        private Task<Void> setElementsForSourceWithDiff(final int sourceId, final List<Element> newElements, final CancellationToken token) {
+            if (token != null && token.isCancellationRequested()) return Task.cancelled();
+            // Diff here, in the worker thread, against a copy of the current elements.
+            final List<Element> oldElements = getElementsBySource(sourceId);
+            final DiffUtil.DiffResult result = oldElements.isEmpty() ? null : DiffUtil.calculateDiff(
+                    new ElementDiffCallback(adapter.getSource(sourceId), oldElements, newElements));
+            return Task.call(new Callable<Void>() {
                 @Override
-                public Void then(Task<List<Pair<Integer, Integer>>> task) throws Exception {
-                    List<Pair<Integer, Integer>> updates = task.getResult();
-                    if (updates == null) return null;
-                    for (Pair<Integer, Integer> p : updates) {
-                        if (p.second == 1) {
-                            notifyPageItemInserted(p.first);
+                public Void call() throws Exception {
+                    synchronized (mutex) {
+                        if (result != null && isSameElements(getIndexedElements(sourceId), oldElements)) {
+                            log("setElementsForSource: dispatching diff for "+newElements.size()+" elements");
+                            DiffApplier applier = new DiffApplier(sourceId, oldElements);
+                            result.dispatchUpdatesTo(applier);
+                            applier.commit(newElements);
                         } else {
-                            notifyPageItemRangeInserted(p.first, p.second);
+                            // Nothing to diff against, or the page changed in the meanwhile.
+                            removeElementsBySource(sourceId);
+                            insertElements(elements.size(), newElements);
                         }
                     }
                     return null;
                 }
-            }, Task.UI_THREAD_EXECUTOR);
+            }, Task.UI_THREAD_EXECUTOR, token);
+        }
+
+        private boolean isSameElements(List<Element> first, List<Element> second) {
+            if (first.size() != second.size()) return false;
+            for (int i = 0; i < first.size(); i++) {
+                if (first.get(i) != second.get(i)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Applies diff updates for a single source to this page, and notifies the adapter.
+         * Positions are relative to the list of this source elements, which might be
+         * interleaved with elements of other sources. Inserted positions are filled with
+         * temporary elements until {@link #commit(List)} is called.
+         * Must be used with the mutex held.
+         */
+        private class DiffApplier implements ListUpdateCallback {
+
+            private final int sourceId;
+            private final List<Element> work;
+
+            private DiffApplier(int sourceId, List<Element> oldElements) {
+                this.sourceId = sourceId;
+                this.work = new ArrayList<>(oldElements);
+            }
+
+            // Page position for an element that should be at the given source position.
+            private int getPagePosition(int position) {
+                if (position < work.size()) return positionOf(work.get(position));
+                if (!work.isEmpty()) return positionOf(work.get(work.size() - 1)) + 1;
+                return elements.size();
+            }
+
+            @Override
+            public void onInserted(int position, int count) {
+                int pagePosition = getPagePosition(position);
+                List<Element> inserted = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    inserted.add(Element.unloaded(sourceId));
+                }
+                elements.addAll(pagePosition, inserted);
+                invalidatePositions(pagePosition);
+                work.addAll(position, inserted);
+                notifyPageItemRangeInserted(pagePosition, count);
+            }
+
+            @Override
+            public void onRemoved(int position, int count) {
+                // Elements might not be contiguous in the page. Go backwards and coalesce.
+                int start = -1;
+                int end = -1;
+                for (int i = position + count - 1; i >= position; i--) {
+                    int pagePosition = positionOf(work.get(i));
+                    if (start != -1 && pagePosition == start - 1) {
+                        start = pagePosition;
+                        continue;
+                    }
+                    if (start != -1) {
+                        removeRange(start, end + 1);
+                        notifyPageItemRangeRemoved(start, end - start + 1);
+                    }
+                    start = end = pagePosition;
+                }
+                if (start != -1) {
+                    removeRange(start, end + 1);
+                    notifyPageItemRangeRemoved(start, end - start + 1);
+                }
+                work.subList(position, position + count).clear();
+            }
+
+            @Override
+            public void onMoved(int fromPosition, int toPosition) {
+                Element element = work.remove(fromPosition);
+                int fromPagePosition = positionOf(element);
+                removeRange(fromPagePosition, fromPagePosition + 1);
+                int toPagePosition = getPagePosition(toPosition);
+                elements.add(toPagePosition, element);
+                invalidatePositions(toPagePosition);
+                work.add(toPosition, element);
+                notifyPageItemMoved(fromPagePosition, toPagePosition);
+            }
+
+            @Override
+            public void onChanged(int position, int count, Object payload) {
+                for (int i = position; i < position + count; i++) {
+                    notifyPageItemChanged(positionOf(work.get(i)));
+                }
+            }
+
+            // Swaps in the new elements. Their positions match, so no notification is needed.
+            private void commit(List<Element> newElements) {
+                for (int i = 0; i < work.size(); i++) {
+                    Element oldElement = work.get(i);
+                    Element newElement = newElements.get(i);
+                    int pagePosition = positionOf(oldElement);
+                    elements.set(pagePosition, newElement);
+                    positionIndex.remove(oldElement);
+                    positionIndex.put(newElement, pagePosition);
+                }
+                if (!sourceIndexDirty) {
+                    sourceIndex.put(sourceId, new ArrayList<>(newElements));
+                }
+                // Nothing to notify, but snapshots taken so far are stale.
+                version++;
+            }
         }
     }
 }
@@ -0,0 +1,201 @@
+package com.otaliastudios.elements;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.UiThread;
+import android.util.Log;
+
+import bolts.Continuation;
+import bolts.Task;
+
+
+/**
+ * Loads the next page before the user reaches the end of the list, by watching bound positions.
+ * The same goes for the previous page, if the first page is not page 0.
+ * Pages are loaded on behalf of the pagination element that was appended to the last page
+ * (see {@link BaseSource#appendPaginationPlaceholder(java.util.List)}), which is removed once
+ * the next page is loaded. If there is no such element, there is nothing to load.
+ *
+ * When adaptive, the distance from the end grows with the scroll speed, so that a next page
+ * that takes the usual time to load is there before the user needs it.
+ *
+ * @see ElementAdapter#setPrefetchDistance(int)
+ * @see ElementAdapter#setPrefetchAdaptive(boolean)
+ */
+/* package */ class Prefetcher {
+
+    private final static String TAG = Prefetcher.class.getSimpleName();
+    private final static boolean DEBUG = false;
+    private static void log(String what) {
+        if (DEBUG) Log.e(TAG, what);
+    }
+
+    // Binds farther in time than this are not part of the same scroll.
+    private final static long SCROLL_TIMEOUT = 1000;
+    // Weight of the last sample in moving averages.
+    private final static float SMOOTHING = 0.3f;
+
+    private final ElementAdapter adapter;
+    private final Pager pager;
+    private final Handler handler;
+    private int distance = -1;
+    private boolean adaptive;
+
+    private int lastPosition = -1;
+    private long lastTime;
+    private float velocity; // Positions per ms, in the current direction.
+    private int direction; // 1 towards the end, -1 towards the start.
+    private float loadTime = 500; // ms, average time to load a page.
+
+    // Pagination element of the last page, or null, as long as the page does not change.
+    private Pager.Page paginationPage;
+    private int paginationVersion;
+    private Element paginationElement;
+
+    private Pager.Page requestedPage;
+    private Pager.Page requestedPreviousPage;
+    private Pager.Page pendingPage;
+    private Element pendingElement;
+    private final Runnable requestRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Pager.Page page = pendingPage;
+            Element element = pendingElement;
+            pendingPage = null;
+            pendingElement = null;
+            if (page != null) request(page, element);
+        }
+    };
+
+    /* package */ Prefetcher(ElementAdapter adapter, Pager pager, Handler handler) {
+        this.adapter = adapter;
+        this.pager = pager;
+        this.handler = handler;
+    }
+
+    /* package */ void setDistance(int distance) {
+        this.distance = distance;
+    }
+
+    /* package */ void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        this.velocity = 0;
+    }
+
+    /* package */ boolean isEnabled() {
+        return distance >= 0;
+    }
+
+    // Distance from the end, or from the start, in positions, that triggers a load.
+    private int getDistance(int towards) {
+        if (!adaptive || towards != direction) return distance;
+        return distance + (int) Math.ceil(velocity * loadTime);
+    }
+
+    /**
+     * Called when a position is bound. If we are close enough to the end, the pagination element
+     * of the last page, if any, is asked to load the next page. If we are close enough to the
+     * start, and the first page is not page 0, the previous page is loaded.
+     * @param position the bound position
+     */
+    @UiThread
+    /* package */ void onBind(int position) {
+        long now = SystemClock.uptimeMillis();
+        if (adaptive) {
+            long elapsed = now - lastTime;
+            int towards = position > lastPosition ? 1 : -1;
+            if (lastPosition < 0 || elapsed > SCROLL_TIMEOUT || towards != direction) {
+                velocity = 0;
+                direction = towards;
+            } else if (position != lastPosition && elapsed > 0) {
+                float sample = Math.abs(position - lastPosition) / (float) elapsed;
+                velocity += SMOOTHING * (sample - velocity);
+            }
+        }
+        lastPosition = position;
+        lastTime = now;
+        if (pager.getNumberOfPages() == 0) return;
+
+        int remaining = adapter.getItemCount() - 1 - position;
+        if (remaining <= getDistance(1)) {
+            Pager.Page page = pager.getPage(pager.getLastPageNumber());
+            if (page != requestedPage && !page.isLoading()) {
+                Element element = getPaginationElement(page);
+                if (element != null) {
+                    log("onBind: prefetching after page "+page.getPageNumber()+", remaining="+remaining);
+                    post(page, element);
+                }
+            }
+        }
+        if (position <= getDistance(-1) && pager.getFirstPageNumber() > 0) {
+            Pager.Page page = pager.getPage(pager.getFirstPageNumber());
+            if (page != requestedPreviousPage && !page.isLoading()) {
+                log("onBind: prefetching before page "+page.getPageNumber()+", position="+position);
+                postPrevious(page);
+            }
+        }
+    }
+
+    // Binds at the end of data would scan the page each time. Look again only if it changed.
+    @UiThread
+    private Element getPaginationElement(Pager.Page page) {
+        if (page != paginationPage || page.getVersion() != paginationVersion) {
+            paginationPage = page;
+            paginationVersion = page.getVersion();
+            paginationElement = adapter.findPaginationElement(page);
+        }
+        return paginationElement;
+    }
+
+    /**
+     * Loads the page after the given one, on behalf of its pagination element.
+     * This is posted, since it can be called while binding, and requests for the same page
+     * are ignored until the first one completes.
+     * @param page the page
+     * @param element its pagination element
+     */
+    @UiThread
+    /* package */ void post(Pager.Page page, Element element) {
+        if (page == requestedPage || page == pendingPage) return;
+        pendingPage = page;
+        pendingElement = element;
+        handler.removeCallbacks(requestRunnable);
+        handler.post(requestRunnable);
+    }
+
+    // Same as post(), but for the previous page. There is no element to remove.
+    @UiThread
+    private void postPrevious(final Pager.Page page) {
+        requestedPreviousPage = page;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                page.loadPreviousPage().continueWith(new Continuation<Void, Void>() {
+                    @Override
+                    public Void then(Task<Void> task) throws Exception {
+                        if (requestedPreviousPage == page) requestedPreviousPage = null;
+                        return null;
+                    }
+                }, Task.UI_THREAD_EXECUTOR);
+            }
+        });
+    }
+
+    @UiThread
+    private void request(final Pager.Page page, final Element element) {
+        if (page == requestedPage) return;
+        requestedPage = page;
+        final long start = SystemClock.uptimeMillis();
+        page.loadNextPage().continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (requestedPage == page) requestedPage = null;
+                if (!task.isFaulted() && !task.isCancelled()) {
+                    loadTime += SMOOTHING * ((SystemClock.uptimeMillis() - start) - loadTime);
+                    page.removeElement(element);
+                }
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+}
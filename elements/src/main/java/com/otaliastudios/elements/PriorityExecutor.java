@@ -0,0 +1,151 @@
+package com.otaliastudios.elements;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bolts.Task;
+
+/**
+ * An {@link Executor} for the background work of {@link ElementAdapter}: ordering elements
+ * and restoring state, and optionally finding pages. Work runs on a small pool of threads with
+ * background priority, so that it does not compete with the UI thread. Since the pool is
+ * small, it is meant for CPU bound work: finds that block on network or disk should only
+ * run here if the pool is sized for them.
+ *
+ * Queued work is run by priority, lower values first, and then in order.
+ * {@link ElementAdapter} gives pages close to the last bound page a lower value,
+ * so that visible pages are found before prefetched ones.
+ *
+ * The queue is bounded: when full, work is run by {@link Task#BACKGROUND_EXECUTOR} instead,
+ * since the caller might be the UI thread and should not block.
+ *
+ * @see ElementAdapter#setFindExecutor(Executor)
+ * @see ElementAdapter#setOrderExecutor(Executor)
+ * @see ElementAdapter#setRestoreExecutor(Executor)
+ */
+public class PriorityExecutor implements Executor {
+
+    private final static String TAG = PriorityExecutor.class.getSimpleName();
+    private final static boolean DEBUG = false;
+    private static void log(String what) {
+        if (DEBUG) Log.e(TAG, what);
+    }
+
+    /**
+     * Priority of work that does not declare one.
+     */
+    public final static int PRIORITY_DEFAULT = 0;
+
+    private final static int KEEP_ALIVE_SECONDS = 1;
+    private final static int CACHED_PRIORITIES = 16;
+
+    private final ThreadPoolExecutor executor;
+    private final int capacity;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Executor[] prioritized = new Executor[CACHED_PRIORITIES]; // By priority
+
+    /**
+     * Creates a new executor.
+     * @param threads number of threads
+     * @param capacity maximum number of queued runnables
+     */
+    public PriorityExecutor(int threads, int capacity) {
+        this.capacity = capacity;
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new BackgroundThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        execute(command, PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Executes the given runnable with the given priority.
+     * @param command the runnable
+     * @param priority its priority, lower values first
+     */
+    public void execute(@NonNull Runnable command, int priority) {
+        if (executor.getQueue().size() >= capacity) {
+            log("execute: queue is full, falling back to the background executor.");
+            Task.BACKGROUND_EXECUTOR.execute(command);
+            return;
+        }
+        executor.execute(new Item(command, priority, sequence.getAndIncrement()));
+    }
+
+    /**
+     * Returns an executor that runs everything on this executor, with the given priority.
+     * Executors for small, non negative priorities are created once and reused.
+     * @param priority the priority, lower values first
+     * @return an executor
+     */
+    @NonNull
+    public Executor withPriority(int priority) {
+        if (priority < 0 || priority >= CACHED_PRIORITIES) return newPrioritized(priority);
+        // Racing threads might both create one. That is fine.
+        Executor executor = prioritized[priority];
+        if (executor == null) {
+            executor = newPrioritized(priority);
+            prioritized[priority] = executor;
+        }
+        return executor;
+    }
+
+    private Executor newPrioritized(final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                PriorityExecutor.this.execute(command, priority);
+            }
+        };
+    }
+
+    private static class Item implements Runnable, Comparable<Item> {
+        private final Runnable runnable;
+        private final int priority;
+        private final long sequence;
+
+        private Item(Runnable runnable, int priority, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull Item other) {
+            if (priority != other.priority) return priority < other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static class BackgroundThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, TAG + " #" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.otaliastudios.elements;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import bolts.Task;
+
+/**
+ * A file where {@link ElementAdapter} saves page data, when it would make the saved instance state
+ * too big. Saved states go through a Binder transaction, that fails with a
+ * {@code TransactionTooLargeException} above a small size limit.
+ *
+ * When page data exceeds the budget, it is written to the file in a background thread and the
+ * saved state only holds a handle to it. The file is read back in a background thread when the
+ * adapter is restored. If the file is missing or was overwritten by a newer save, pages are
+ * found again.
+ *
+ * @see ElementAdapter#setStateFile(StateFile)
+ */
+public class StateFile {
+
+    private final static String TAG = StateFile.class.getSimpleName();
+    private final static boolean DEBUG = false;
+    private static void log(String what) {
+        if (DEBUG) Log.e(TAG, what);
+    }
+
+    private final static int MAGIC = 0x454C5346;
+    private final static int FORMAT_VERSION = 1;
+    private final static int HEADER_SIZE = 12;
+    private final static String UTF_8 = "UTF-8";
+
+    /**
+     * The default budget, in bytes. Page data below this size is saved in the state as usual.
+     */
+    public final static int DEFAULT_BUDGET = 100 * 1024;
+
+    private final File file;
+    private final int budget;
+    private final Executor executor;
+
+    /**
+     * Creates a state file with the default budget.
+     *
+     * @see #StateFile(File, int)
+     * @param file the file
+     */
+    public StateFile(@NonNull File file) {
+        this(file, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Creates a state file, typically in {@code Context.getCacheDir()}.
+     * Each adapter should use a different file.
+     *
+     * @param file the file
+     * @param budget the size, in bytes, above which page data is saved to the file
+     */
+    public StateFile(@NonNull File file, int budget) {
+        this.file = file;
+        this.budget = budget;
+        this.executor = PageStore.newSerialExecutor(TAG);
+    }
+
+    /**
+     * Writes the given data to the file, if it exceeds the budget.
+     * @param data the page data
+     * @return a handle to be saved in the state, or null if data should be saved as usual
+     */
+    @UiThread
+    @Nullable
+    /* package */ String write(@NonNull Bundle data) {
+        final byte[] bytes;
+        try {
+            bytes = PageStore.marshall(data);
+        } catch (RuntimeException e) {
+            // Bundle has binders or file descriptors. Let the system deal with it.
+            log("write: can't marshall: "+e);
+            return null;
+        }
+        log("write: page data has "+bytes.length+" bytes.");
+        if (bytes.length <= budget) return null;
+        final String handle = UUID.randomUUID().toString();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File temp = new File(file.getPath() + ".tmp");
+                DataOutputStream out = null;
+                boolean success = false;
+                try {
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(Build.VERSION.SDK_INT);
+                    out.writeUTF(handle);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    success = true;
+                } catch (IOException e) {
+                    log("write: failed: "+e);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            success = false;
+                        }
+                    }
+                }
+                if (!success || !temp.renameTo(file)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    temp.delete();
+                }
+            }
+        });
+        return handle;
+    }
+
+    /**
+     * Reads the data for this handle from the file. Fails if the file does not
+     * hold this handle anymore.
+     * @param handle a handle returned by {@link #write(Bundle)}
+     * @return a task for the page data
+     */
+    @NonNull
+    /* package */ Task<Bundle> read(@NonNull final String handle) {
+        return Task.call(new Callable<Bundle>() {
+            @Override
+            public Bundle call() throws Exception {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+                            || in.readInt() != Build.VERSION.SDK_INT || !handle.equals(in.readUTF())) {
+                        throw new IOException("State file does not match the saved state.");
+                    }
+                    // An invalid length is treated like a missing state, so that a corrupted
+                    // file can't make us allocate a huge or negative array. Data can't be longer
+                    // than what follows the header, the handle and the length itself.
+                    int handleSize = 2 + handle.getBytes(UTF_8).length;
+                    long remaining = file.length() - HEADER_SIZE - handleSize - 4;
+                    int size = in.readInt();
+                    if (size < 0 || size > remaining) throw new IOException("Invalid state length: "+size);
+                    byte[] bytes = new byte[size];
+                    in.readFully(bytes);
+                    return PageStore.unmarshall(bytes, StateFile.class.getClassLoader());
+                } finally {
+                    in.close();
+                }
+            }
+        }, executor);
+    }
+}
@@ -18,6 +18,8 @@ import java.util.Random;
  * serialized in any way. Objects in the cache are automatically removed after a reasonable time.
  * Use persistance at your own risk: if you restore after persistance has ended, you will end up
  * with an empty list.
+ * Objects do not outlive the process, so sources using this serializer are never written to a
+ * {@link PageStore}.
  */
 public class StaticSerializer implements ElementSerializer {
 
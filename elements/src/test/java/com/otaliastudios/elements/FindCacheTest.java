@@ -0,0 +1,133 @@
+package com.otaliastudios.elements;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FindCacheTest {
+
+    // A cache with a clock that only moves when told.
+    private static class TestCache extends FindCache {
+        private long time = 1000;
+
+        private TestCache(int maxEntries, long ttl) {
+            super(maxEntries, ttl);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    private TestCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new TestCache(3, 100);
+    }
+
+    private static List<Object> list(Object... objects) {
+        return new ArrayList<>(Arrays.asList(objects));
+    }
+
+    @Test
+    public void testMissing() {
+        assertNull(cache.get("0:a"));
+        assertTrue(cache.isStale("0:a"));
+    }
+
+    @Test
+    public void testFresh() {
+        cache.put("0:a", list("x", "y"));
+        cache.time += 99;
+        assertEquals(list("x", "y"), cache.get("0:a"));
+        assertFalse(cache.isStale("0:a"));
+    }
+
+    @Test
+    public void testCopies() {
+        List<Object> objects = list("x");
+        cache.put("0:a", objects);
+        objects.add("y");
+        List<Object> cached = cache.get("0:a");
+        assertEquals(list("x"), cached);
+        cached.add("z");
+        assertEquals(list("x"), cache.get("0:a"));
+    }
+
+    @Test
+    public void testExpired() {
+        cache.put("0:a", list("x"));
+        cache.time += 100;
+        assertTrue(cache.isStale("0:a"));
+        assertNull(cache.get("0:a"));
+        // Expired entries are dropped.
+        cache.time -= 100;
+        assertNull(cache.get("0:a"));
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() {
+        cache.setStaleWhileRevalidate(50);
+        cache.put("0:a", list("x"));
+        cache.time += 120;
+        assertTrue(cache.isStale("0:a"));
+        assertEquals(list("x"), cache.get("0:a"));
+        cache.time += 30;
+        assertNull(cache.get("0:a"));
+    }
+
+    @Test
+    public void testRevalidatedIsFresh() {
+        cache.setStaleWhileRevalidate(50);
+        cache.put("0:a", list("x"));
+        cache.time += 120;
+        cache.put("0:a", list("y"));
+        assertFalse(cache.isStale("0:a"));
+        assertEquals(list("y"), cache.get("0:a"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() {
+        cache.put("0:a", list("a"));
+        cache.put("0:b", list("b"));
+        cache.put("0:c", list("c"));
+        // Access a, so that b is the eldest.
+        assertNotNull(cache.get("0:a"));
+        cache.put("0:d", list("d"));
+        assertNull(cache.get("0:b"));
+        assertNotNull(cache.get("0:a"));
+        assertNotNull(cache.get("0:c"));
+        assertNotNull(cache.get("0:d"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.put("0:a", list("a"));
+        cache.put("0:b", list("b"));
+        cache.put("1:a", list("a"));
+        cache.invalidate("0:");
+        assertNull(cache.get("0:a"));
+        assertNull(cache.get("0:b"));
+        assertNotNull(cache.get("1:a"));
+    }
+
+    @Test
+    public void testClear() {
+        cache.put("0:a", list("a"));
+        cache.put("1:a", list("a"));
+        cache.clear();
+        assertNull(cache.get("0:a"));
+        assertNull(cache.get("1:a"));
+    }
+}
@@ -0,0 +1,160 @@
+package com.otaliastudios.elements;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PageIndexTest {
+
+    @Test
+    public void testEmpty() {
+        PageIndex index = new PageIndex();
+        assertEquals(0, index.getCount());
+        assertEquals(0, index.getTotal());
+        assertEquals(-1, index.find(0));
+        assertEquals(-1, index.find(-1));
+    }
+
+    @Test
+    public void testFind() {
+        PageIndex index = build(3, 0, 2, 5);
+        assertEquals(10, index.getTotal());
+        assertEquals(0, index.find(0));
+        assertEquals(0, index.find(2));
+        // Empty pages are skipped.
+        assertEquals(2, index.find(3));
+        assertEquals(2, index.find(4));
+        assertEquals(3, index.find(5));
+        assertEquals(3, index.find(9));
+        assertEquals(-1, index.find(10));
+    }
+
+    @Test
+    public void testSizeBefore() {
+        PageIndex index = build(3, 0, 2, 5);
+        assertEquals(0, index.getSizeBefore(0));
+        assertEquals(3, index.getSizeBefore(1));
+        assertEquals(3, index.getSizeBefore(2));
+        assertEquals(5, index.getSizeBefore(3));
+        assertEquals(10, index.getSizeBefore(4));
+    }
+
+    @Test
+    public void testUpdate() {
+        PageIndex index = build(3, 4, 5);
+        index.update(1, -4);
+        assertEquals(8, index.getTotal());
+        assertEquals(0, index.getSize(1));
+        assertEquals(2, index.find(3));
+        index.update(0, 2);
+        assertEquals(5, index.getSizeBefore(1));
+        assertEquals(2, index.find(5));
+    }
+
+    @Test
+    public void testRemove() {
+        PageIndex index = build(3, 4, 5);
+        index.remove(1);
+        assertEquals(2, index.getCount());
+        assertEquals(8, index.getTotal());
+        assertEquals(5, index.getSize(1));
+        assertEquals(1, index.find(3));
+        assertEquals(3, index.getSizeBefore(1));
+    }
+
+    @Test
+    public void testInsert() {
+        PageIndex index = build(3, 4);
+        index.insert(1);
+        assertEquals(3, index.getCount());
+        assertEquals(0, index.getSize(1));
+        assertEquals(4, index.getSize(2));
+        index.update(1, 2);
+        assertEquals(1, index.find(3));
+        assertEquals(2, index.find(5));
+        assertEquals(9, index.getTotal());
+    }
+
+    @Test
+    public void testPrepend() {
+        PageIndex index = build(3, 4);
+        index.prepend();
+        index.update(0, 1);
+        assertEquals(0, index.find(0));
+        assertEquals(1, index.find(1));
+        assertEquals(2, index.find(4));
+        assertEquals(8, index.getTotal());
+    }
+
+    @Test
+    public void testGrowth() {
+        int[] sizes = new int[100];
+        for (int i = 0; i < sizes.length; i++) sizes[i] = i % 3;
+        PageIndex index = build(sizes);
+        assertEquals(100, index.getCount());
+        assertIndex(toList(sizes), index);
+    }
+
+    // Compares against a list of sizes, after random operations.
+    @Test
+    public void testRandomOperations() {
+        Random random = new Random(42);
+        PageIndex index = new PageIndex();
+        List<Integer> sizes = new ArrayList<>();
+        for (int step = 0; step < 2000; step++) {
+            int operation = sizes.isEmpty() ? 0 : random.nextInt(5);
+            if (operation == 0) {
+                index.append();
+                sizes.add(0);
+            } else if (operation == 1) {
+                int position = random.nextInt(sizes.size() + 1);
+                index.insert(position);
+                sizes.add(position, 0);
+            } else if (operation == 2 && sizes.size() > 1) {
+                int position = random.nextInt(sizes.size());
+                index.remove(position);
+                sizes.remove(position);
+            } else {
+                int position = random.nextInt(sizes.size());
+                int delta = random.nextInt(10) - sizes.get(position) / 2;
+                index.update(position, delta);
+                sizes.set(position, sizes.get(position) + delta);
+            }
+            assertIndex(sizes, index);
+        }
+    }
+
+    private static PageIndex build(int... sizes) {
+        PageIndex index = new PageIndex();
+        for (int i = 0; i < sizes.length; i++) {
+            index.append();
+            index.update(i, sizes[i]);
+        }
+        return index;
+    }
+
+    private static List<Integer> toList(int[] array) {
+        List<Integer> list = new ArrayList<>(array.length);
+        for (int value : array) list.add(value);
+        return list;
+    }
+
+    private static void assertIndex(List<Integer> sizes, PageIndex index) {
+        assertEquals(sizes.size(), index.getCount());
+        int before = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            assertEquals((int) sizes.get(i), index.getSize(i));
+            assertEquals(before, index.getSizeBefore(i));
+            for (int position = before; position < before + sizes.get(i); position++) {
+                assertEquals(i, index.find(position));
+            }
+            before += sizes.get(i);
+        }
+        assertEquals(before, index.getTotal());
+        assertEquals(-1, index.find(before));
+    }
+}
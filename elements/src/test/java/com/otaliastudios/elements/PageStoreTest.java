@@ -0,0 +1,168 @@
+package com.otaliastudios.elements;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "pages");
+    }
+
+    private static Map<String, byte[]> records(String key, byte[] value) {
+        Map<String, byte[]> records = new HashMap<>();
+        records.put(key, value);
+        return records;
+    }
+
+    private static byte[] bytes(int size, int value) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) bytes[i] = (byte) value;
+        return bytes;
+    }
+
+    @Test
+    public void testIsStored() {
+        PageStore store = new PageStore(file, 2);
+        assertFalse(store.isStored(-1));
+        assertTrue(store.isStored(0));
+        assertTrue(store.isStored(1));
+        assertFalse(store.isStored(2));
+    }
+
+    @Test
+    public void testEmpty() {
+        PageStore store = new PageStore(file, 2);
+        assertTrue(store.read(0).isEmpty());
+    }
+
+    @Test
+    public void testReadWrite() {
+        PageStore store = new PageStore(file, 2);
+        Map<String, byte[]> page0 = new HashMap<>();
+        page0.put("source:A:0", bytes(3, 1));
+        page0.put("source:B:1", new byte[0]);
+        store.write(0, page0);
+        store.write(1, records("source:A:0", bytes(5, 2)));
+
+        // Read back from a new store, as on a cold start.
+        PageStore other = new PageStore(file, 2);
+        Map<String, byte[]> read0 = other.read(0);
+        assertEquals(2, read0.size());
+        assertArrayEquals(bytes(3, 1), read0.get("source:A:0"));
+        assertArrayEquals(new byte[0], read0.get("source:B:1"));
+        Map<String, byte[]> read1 = other.read(1);
+        assertEquals(1, read1.size());
+        assertArrayEquals(bytes(5, 2), read1.get("source:A:0"));
+    }
+
+    @Test
+    public void testLaterRecordsWin() {
+        PageStore store = new PageStore(file, 1);
+        store.write(0, records("source:A:0", bytes(3, 1)));
+        store.write(0, records("source:A:0", bytes(2, 7)));
+        assertArrayEquals(bytes(2, 7), store.read(0).get("source:A:0"));
+        assertArrayEquals(bytes(2, 7), new PageStore(file, 1).read(0).get("source:A:0"));
+    }
+
+    @Test
+    public void testPageNumbersDoNotClash() {
+        PageStore store = new PageStore(file, 20);
+        store.write(1, records("source:A:0", bytes(1, 1)));
+        store.write(11, records("source:A:0", bytes(1, 11)));
+        PageStore other = new PageStore(file, 20);
+        assertArrayEquals(bytes(1, 1), other.read(1).get("source:A:0"));
+        assertArrayEquals(bytes(1, 11), other.read(11).get("source:A:0"));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        PageStore store = new PageStore(file, 2);
+        store.write(0, records("source:A:0", bytes(10, 1)));
+        long valid = file.length();
+        store.write(1, records("source:A:0", bytes(10, 2)));
+        // A crash while writing the second record.
+        truncate(file, file.length() - 4);
+
+        PageStore other = new PageStore(file, 2);
+        assertArrayEquals(bytes(10, 1), other.read(0).get("source:A:0"));
+        assertTrue(other.read(1).isEmpty());
+        // The file was rewritten with valid records only.
+        assertEquals(valid, file.length());
+    }
+
+    @Test
+    public void testInvalidLengths() throws IOException {
+        PageStore store = new PageStore(file, 2);
+        store.write(0, records("source:A:0", bytes(10, 1)));
+        appendInt(file, Integer.MAX_VALUE);
+        PageStore other = new PageStore(file, 2);
+        assertArrayEquals(bytes(10, 1), other.read(0).get("source:A:0"));
+
+        appendInt(file, -1);
+        other = new PageStore(file, 2);
+        assertArrayEquals(bytes(10, 1), other.read(0).get("source:A:0"));
+    }
+
+    @Test
+    public void testOtherVersion() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x454C5053);
+        out.writeInt(-1); // Format version
+        out.writeInt(0);
+        out.writeInt(3);
+        out.write("0:a".getBytes("UTF-8"));
+        out.writeInt(0);
+        out.close();
+        PageStore store = new PageStore(file, 1);
+        assertTrue(store.read(0).isEmpty());
+        // Writes start over with a valid file.
+        store.write(0, records("source:A:0", bytes(1, 1)));
+        assertArrayEquals(bytes(1, 1), new PageStore(file, 1).read(0).get("source:A:0"));
+    }
+
+    @Test
+    public void testCompaction() {
+        PageStore store = new PageStore(file, 1);
+        byte[] value = bytes(1024, 3);
+        for (int i = 0; i < 200; i++) {
+            store.write(0, records("source:A:0", value));
+        }
+        // Old records are dropped once the file is too big.
+        assertTrue(file.length() < 64 * 1024 + 2 * 1024);
+        assertArrayEquals(value, new PageStore(file, 1).read(0).get("source:A:0"));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile random = new RandomAccessFile(file, "rw");
+        random.setLength(length);
+        random.close();
+    }
+
+    private static void appendInt(File file, int value) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        out.writeInt(value);
+        out.close();
+    }
+}
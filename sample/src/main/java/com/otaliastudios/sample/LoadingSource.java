@@ -16,10 +16,12 @@ import bolts.Task;
 
 /**
  * This source delays the find for 2 seconds, just to let us see the
- * progress indicator.
+ * progress indicator. Then it emits results in chunks, as a cursor would.
  */
 public class LoadingSource extends BaseSource {
 
+    private final static int CHUNK_SIZE = 5;
+
     public LoadingSource() {
         setLoadingPlaceholderEnabled(true);
     }
@@ -44,6 +46,28 @@ public class LoadingSource extends BaseSource {
         }, Task.BACKGROUND_EXECUTOR);
     }
 
+    @Override
+    protected Task<List<Object>> find(Pager.Page page, final Emitter emitter) {
+        return find(page).onSuccessTask(new Continuation<List<Object>, Task<List<Object>>>() {
+            @Override
+            public Task<List<Object>> then(Task<List<Object>> task) throws Exception {
+                return emit(task.getResult(), 0, emitter);
+            }
+        });
+    }
+
+    // Emits a chunk, then waits a bit before the next one.
+    private Task<List<Object>> emit(final List<Object> all, final int from, final Emitter emitter) {
+        if (from >= all.size()) return Task.<List<Object>>forResult(new ArrayList<>());
+        emitter.emit(new ArrayList<>(all.subList(from, Math.min(from + CHUNK_SIZE, all.size()))));
+        return Task.delay(200, emitter.getToken()).onSuccessTask(new Continuation<Void, Task<List<Object>>>() {
+            @Override
+            public Task<List<Object>> then(Task<Void> task) throws Exception {
+                return emit(all, from + CHUNK_SIZE, emitter);
+            }
+        });
+    }
+
     @Override
     protected int getValidElementType(Object data) {
         return Presenter.TYPE_TEXT_SMALL;